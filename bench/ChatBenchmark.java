@@ -0,0 +1,328 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Throughput and latency benchmarks for the chat server.
+ *
+ * Micro benchmarks time the command handlers of ChatServer.Connection,
+ * the GMT stamp and the parsing in SocketReader with warm up and measured
+ * iterations. The fan-out benchmark starts a ChatServer in this JVM, logs
+ * in N loopback clients and has one of them send a burst of general
+ * messages. It reports delivered messages per second and the p50/p99/p999
+ * latency from sending to delivery at each recipient.
+ *
+ * Usage: java -cp target/classes:target/test-classes ChatBenchmark [micro|fanout|all] [mode] [clients] [messages]
+ * 	mode - server mode for the fan-out, threads, virtual or nio (default nio)
+ * 	clients - comma separated client counts (default 10,100,1000,10000)
+ * 	messages - messages in each burst (default 200)
+ *
+ * The server classes are in the default package, which JMH refuses to
+ * generate benchmarks for, so this harness does its own warm up and timing.
+ *
+ */
+public class ChatBenchmark {
+	private static final int WARMUP_ITERATIONS = 5;
+	private static final int ITERATIONS = 5;
+	private static final long ITERATION_NANOS = 1_000_000_000L;
+
+	private static volatile Object sink; // Keeps the JIT from dropping the work
+
+	public static void main(String[] args) throws Exception {
+		String what = (args.length > 0) ? args[0] : "all";
+		String mode = (args.length > 1) ? args[1] : "nio";
+		String clients = (args.length > 2) ? args[2] : "10,100,1000,10000";
+		int messages = (args.length > 3) ? Integer.parseInt(args[3]) : 200;
+
+		// No room history, message log or inbox: every line the clients get is one this run sent
+		System.setProperty("chat.history", "0");
+		System.setProperty("chat.log.dir", "");
+		System.setProperty("chat.inbox.dir", "");
+
+		if (what.equals("micro") || what.equals("all")) {
+			micro();
+		}
+		if (what.equals("fanout") || what.equals("all")) {
+			int port = freePort();
+			startServer(mode, port);
+
+			for (String n: clients.split(",")) {
+				fanOut(port, Integer.parseInt(n.trim()), messages);
+			}
+		}
+		System.exit(0);
+	}
+
+	private static void micro() throws IOException {
+		// A real connection over loopback, it never logs in so nothing gets written
+		ServerSocket ss = new ServerSocket(0);
+		Socket peer = new Socket("127.0.0.1", ss.getLocalPort());
+		ChatServer.Connection c = new ChatServer.Connection(ss.accept());
+		c.username = "alice";
+
+		SocketReader reader = new SocketReader(null);
+		String line5 = "5 alice 2026:01:01:00:00:00 are you coming to the meeting later today?";
+		String line6 = "6 alice bob 2026:01:01:00:00:00 are you coming to the meeting later today?";
+		String line1 = "1 alice,bob,carol,dave,erin Welcome to the chatroom, erin";
+
+		System.out.println("benchmark                      ns/op       ops/s");
+		measure("Connection.command5", () -> c.command5("3 are you coming to the meeting later today?"));
+		measure("Connection.command6", () -> c.command6("4 alice bob are you coming to the meeting later today?"));
+		measure("GmtClock.now", () -> GmtClock.now());
+		measure("SocketReader.command1", () -> reader.command1(line1));
+		measure("SocketReader.command5", () -> reader.command5(line5));
+		measure("SocketReader.command6", () -> reader.command6(line6));
+
+		peer.close();
+		ss.close();
+	}
+
+	/**
+	 * Run an operation in timed iterations and print the average
+	 *
+	 * @param name - what is measured
+	 * @param op - one operation
+	 */
+	private static void measure(String name, Supplier<Object> op) {
+		double[] ns_per_op = new double[ITERATIONS];
+
+		for (int i = 0; i < WARMUP_ITERATIONS + ITERATIONS; i++) {
+			long ops = 0;
+			long start = System.nanoTime();
+			long elapsed;
+
+			do {
+				for (int k = 0; k < 1000; k++) {
+					sink = op.get();
+				}
+				ops += 1000;
+			} while ((elapsed = System.nanoTime() - start) < ITERATION_NANOS);
+
+			if (i >= WARMUP_ITERATIONS) {
+				ns_per_op[i - WARMUP_ITERATIONS] = (double) elapsed / ops;
+			}
+		}
+
+		double mean = Arrays.stream(ns_per_op).average().getAsDouble();
+		System.out.printf("%-26s %9.1f %11.0f%n", name, mean, 1e9 / mean);
+	}
+
+	/**
+	 * Log N clients in, send a burst of general messages from the first one,
+	 * and time every delivery.
+	 *
+	 * @param port - where the server listens
+	 * @param clients - how many clients log in
+	 * @param messages - how many messages the burst has
+	 */
+	private static void fanOut(int port, int clients, int messages) throws Exception {
+		Receiver receiver = new Receiver(clients, messages);
+		SocketChannel[] channels = new SocketChannel[clients];
+
+		for (int i = 0; i < clients; i++) {
+			channels[i] = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+			writeFully(channels[i], "0 b" + clients + "x" + i + "\r\n");
+			channels[i].configureBlocking(false);
+			receiver.add(channels[i], i);
+		}
+		Thread reader = new Thread(receiver, "bench-receiver");
+		reader.start();
+		receiver.welcomed.await(clients, 0);
+		Thread.sleep(200); // Let the last join announcements drain
+
+		long start = System.nanoTime();
+		for (int m = 0; m < messages; m++) {
+			writeFully(channels[0], "3 " + System.nanoTime() + "\r\n");
+		}
+		if (!receiver.delivered.await((long) clients * messages, 60_000)) {
+			System.out.println("fanout clients=" + clients + " timed out, some messages were not delivered");
+		}
+		long elapsed = System.nanoTime() - start;
+
+		long[] latency = receiver.latencies();
+		Arrays.sort(latency);
+		System.out.printf("fanout clients=%-6d delivered=%-8d msgs/s=%-10.0f p50=%dus p99=%dus p999=%dus%n",
+				clients, latency.length, latency.length / (elapsed / 1e9),
+				percentile(latency, 0.50) / 1000, percentile(latency, 0.99) / 1000, percentile(latency, 0.999) / 1000);
+
+		receiver.stop();
+		reader.join();
+		for (SocketChannel ch: channels) {
+			ch.configureBlocking(true);
+			writeFully(ch, "7 \r\n");
+			ch.close();
+		}
+		Thread.sleep(500); // Let the server release the names
+	}
+
+	private static long percentile(long[] sorted, double p) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+	}
+
+	private static void writeFully(SocketChannel ch, String text) throws IOException {
+		ByteBuffer b = ByteBuffer.wrap(text.getBytes(Frame.CHARSET));
+
+		while (b.hasRemaining()) {
+			ch.write(b);
+		}
+	}
+
+	private static void startServer(String mode, int port) throws InterruptedException {
+		Thread server = new Thread(() -> {
+			try {
+				ChatServer.main(new String[] {mode, Integer.toString(port)});
+			} catch (IOException ioe) {
+				System.err.println(ioe);
+			}
+		}, "chat-server");
+		server.setDaemon(true);
+		server.start();
+
+		while (true) {
+			try (Socket probe = new Socket()) {
+				probe.connect(new InetSocketAddress("127.0.0.1", port), 100);
+				return;
+			} catch (IOException e) {
+				Thread.sleep(50);
+			}
+		}
+	}
+
+	private static int freePort() throws IOException {
+		try (ServerSocket ss = new ServerSocket(0)) {
+			return ss.getLocalPort();
+		}
+	}
+
+	/**
+	 * Reads every client on one selector thread. Counts welcomes and
+	 * records the latency of each command 5 that carries a send time.
+	 */
+	private static class Receiver implements Runnable {
+		final Selector selector;
+		final Counter welcomed = new Counter();
+		final Counter delivered = new Counter();
+		final long[] latency;
+		final AtomicInteger recorded = new AtomicInteger();
+		volatile boolean running = true;
+
+		Receiver(int clients, int messages) throws IOException {
+			this.selector = Selector.open();
+			this.latency = new long[clients * messages];
+		}
+
+		void add(SocketChannel ch, int id) throws IOException {
+			ch.register(selector, SelectionKey.OP_READ, new StringBuilder());
+		}
+
+		void stop() {
+			running = false;
+			selector.wakeup();
+		}
+
+		long[] latencies() {
+			return Arrays.copyOf(latency, Math.min(recorded.get(), latency.length));
+		}
+
+		public void run() {
+			ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+
+			try {
+				while (running) {
+					selector.select(100);
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+
+						buf.clear();
+						if (((SocketChannel) key.channel()).read(buf) <= 0) {
+							continue;
+						}
+						buf.flip();
+
+						StringBuilder line = (StringBuilder) key.attachment();
+						while (buf.hasRemaining()) {
+							char ch = (char) buf.get(); // The benchmark only sends ASCII
+							if ((ch == '\n') || (ch == '\r')) {
+								if (line.length() > 0) {
+									onLine(line);
+									line.setLength(0);
+								}
+							}
+							else {
+								line.append(ch);
+							}
+						}
+					}
+				}
+				selector.close();
+			} catch (IOException ioe) {
+				System.err.println(ioe);
+			}
+		}
+
+		private void onLine(StringBuilder line) {
+			long now = System.nanoTime();
+
+			if ((line.charAt(0) == '1') && (line.charAt(1) == ' ')) {
+				welcomed.add(1);
+			}
+			else if ((line.charAt(0) == '5') && (line.charAt(1) == ' ')) { // 5 <user> <time> <send nanos>
+				int space = line.lastIndexOf(" ");
+				long sent = Long.parseLong(line.substring(space + 1));
+
+				int i = recorded.getAndIncrement();
+				if (i < latency.length) {
+					latency[i] = now - sent;
+				}
+				delivered.add(1);
+			}
+		}
+	}
+
+	/**
+	 * A count that can be waited on
+	 */
+	private static class Counter {
+		private long count = 0;
+
+		synchronized void add(long n) {
+			count += n;
+			notifyAll();
+		}
+
+		/**
+		 * Wait for the count to reach a target
+		 *
+		 * @param target - the count to wait for
+		 * @param millis - longest wait, 0 waits for ever
+		 *
+		 * @return boolean - false if it timed out
+		 */
+		synchronized boolean await(long target, long millis) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + millis;
+
+			while (count < target) {
+				long left = deadline - System.currentTimeMillis();
+				if ((millis > 0) && (left <= 0)) {
+					return false;
+				}
+				wait((millis > 0) ? left : 0);
+			}
+			return true;
+		}
+	}
+}
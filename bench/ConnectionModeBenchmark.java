@@ -0,0 +1,131 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Compares the ways ChatServer can service its clients.
+ * 
+ * Starts the server in this JVM in the given mode, logs in a number of
+ * idle clients and reports what they cost (CPU while idle, heap and threads
+ * per session). Then one client sends general messages and times how long
+ * each takes to come back.
+ * 
+ * Usage: java ConnectionModeBenchmark <threads|virtual|nio> [clients] [messages] [port]
+ * 
+ * Run one mode per JVM, bench/compare-modes.sh runs them side by side.
+ *
+ */
+public class ConnectionModeBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		String mode = (args.length > 0) ? args[0] : "threads";
+		int clients = (args.length > 1) ? Integer.parseInt(args[1]) : 500;
+		int messages = (args.length > 2) ? Integer.parseInt(args[2]) : 1000;
+		int port = (args.length > 3) ? Integer.parseInt(args[3]) : 1337;
+		
+		// No room history, message log or inbox: every line the talker gets is one this run sent
+		System.setProperty("chat.history", "0");
+		System.setProperty("chat.log.dir", "");
+		System.setProperty("chat.inbox.dir", "");
+		
+		Thread server = new Thread(() -> {
+			try {
+				ChatServer.main(new String[] {mode, Integer.toString(port)});
+			} catch (IOException ioe) {
+				System.err.println(ioe);
+			}
+		}, "chat-server");
+		server.setDaemon(true);
+		server.start();
+		waitForPort(port);
+		
+		long heap_before = usedHeap();
+		int threads_before = Thread.activeCount();
+		
+		// Idle clients log in and never read or write again
+		ArrayList<Socket> idle = new ArrayList<Socket>();
+		for (int i = 0; i < clients; i++) {
+			Socket s = new Socket("127.0.0.1", port);
+			s.getOutputStream().write(("0 idle" + i + "\r\n").getBytes());
+			idle.add(s);
+		}
+		Thread.sleep(1000); // Let the logins and the join announcements settle
+		
+		long heap_per_session = (usedHeap() - heap_before) / Math.max(1, clients);
+		int threads_added = Thread.activeCount() - threads_before;
+		double idle_cpu = idleCpu(3000);
+		
+		// One client times its own general messages coming back
+		Socket talker = new Socket("127.0.0.1", port);
+		BufferedReader in = new BufferedReader(new InputStreamReader(talker.getInputStream()));
+		PrintWriter out = new PrintWriter(talker.getOutputStream(), true);
+		out.println("0 talker");
+		in.readLine(); // Welcome
+		
+		long[] latency = new long[messages];
+		for (int i = 0; i < messages; i++) {
+			long start = System.nanoTime();
+			out.println("3 " + start);
+			
+			String line;
+			while (((line = in.readLine()) != null) && !line.startsWith("5 talker ")) {
+				// Skip blank lines and anything that is not our own message
+			}
+			latency[i] = System.nanoTime() - start;
+		}
+		Arrays.sort(latency);
+		
+		System.out.printf("%-8s clients=%d idle_cpu=%.1f%% heap/session=%dB threads+=%d p50=%dus p99=%dus max=%dus%n",
+				mode, clients, idle_cpu, heap_per_session, threads_added,
+				latency[messages / 2] / 1000, latency[(int) (messages * 0.99)] / 1000, latency[messages - 1] / 1000);
+		
+		out.println("7 ");
+		talker.close();
+		for (Socket s: idle) {
+			s.close();
+		}
+		System.exit(0);
+	}
+	
+	private static void waitForPort(int port) throws InterruptedException {
+		while (true) {
+			try (Socket probe = new Socket()) {
+				probe.connect(new InetSocketAddress("127.0.0.1", port), 100);
+				return;
+			} catch (IOException e) {
+				Thread.sleep(50);
+			}
+		}
+	}
+	
+	private static long usedHeap() {
+		Runtime rt = Runtime.getRuntime();
+		
+		System.gc();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+	
+	/**
+	 * CPU used by this whole process while nothing is being sent
+	 * 
+	 * @param millis - how long to measure
+	 * 
+	 * @return double - percent of one core
+	 */
+	private static double idleCpu(long millis) throws InterruptedException {
+		com.sun.management.OperatingSystemMXBean os =
+				(com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+		
+		long cpu_start = os.getProcessCpuTime();
+		long wall_start = System.nanoTime();
+		Thread.sleep(millis);
+		
+		return 100.0 * (os.getProcessCpuTime() - cpu_start) / (System.nanoTime() - wall_start);
+	}
+}
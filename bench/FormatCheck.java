@@ -0,0 +1,386 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks of what the server writes to disk and to +binary and +deflate
+ * clients: the MessageLog and the InboxStore are written, opened again
+ * and read back, also after the last record was cut short or damaged,
+ * and the frames of BinaryCodec and DeflateCodec are decoded again the
+ * way a client does.
+ *
+ * Every check prints its result, the exit status is 1 if one failed.
+ * The files go to a temporary directory that is deleted at the end.
+ *
+ * Usage: java -cp target/classes:target/test-classes FormatCheck
+ *
+ */
+public class FormatCheck {
+	private static final int SEGMENT_BYTES = 4096; 	// Small, so a few hundred records fill several segments
+	private static final String STAMP = "2026:10:18:12:34:56";
+
+	private static int failures = 0;
+
+	public static void main(String[] args) throws Exception {
+		System.setProperty("chat.binary.ids", "3"); // Before ServerConfig is loaded, so the id table fills up
+		File dir = Files.createTempDirectory("chat-format-check").toFile();
+
+		try {
+			messageLog(new File(dir, "log"));
+			damagedLog(new File(dir, "damaged"), false);
+			damagedLog(new File(dir, "cut"), true);
+			retention(new File(dir, "retention"));
+			inbox(new File(dir, "inbox"));
+			inboxCutShort(new File(dir, "inbox-cut"));
+			inboxCompaction(new File(dir, "inbox-compact"));
+			binary();
+			deflate();
+		} finally {
+			delete(dir);
+		}
+
+		System.out.println((failures == 0) ? "All checks passed" : failures + " checks FAILED");
+		System.exit((failures == 0) ? 0 : 1);
+	}
+
+	// Records come back as they were written, from any offset and after the log is opened again
+	private static void messageLog(File dir) throws Exception {
+		MessageLog log = startLog(dir, Long.MAX_VALUE);
+		List<String> lines = appendLines(log, 0, 300);
+
+		List<MessageLog.Record> all = log.read(0, 1000);
+		check(all.size() == 300, "log: all records read back");
+		check(matches(all, lines, 0), "log: records in order with their room and line");
+		check(segments(dir) > 1, "log: records spread over several segments");
+
+		List<MessageLog.Record> some = log.read(150, 10);
+		check((some.size() == 10) && matches(some, lines.subList(150, 160), 150), "log: read from an offset");
+		check(log.read(300, 10).isEmpty(), "log: nothing past the end");
+
+		MessageLog again = startLog(dir, Long.MAX_VALUE);
+		check(again.nextOffset() == 300, "log: recovery finds the end of the last segment");
+		check(matches(again.read(0, 1000), lines, 0), "log: records the same after recovery");
+
+		lines.addAll(appendLines(again, 300, 5));
+		List<MessageLog.Record> more = again.read(295, 100);
+		check((more.size() == 10) && matches(more, lines.subList(295, 305), 295), "log: appends go on after the recovered records");
+	}
+
+	// The last record of the last segment fails its crc or is cut short: recovery ends the log before it
+	private static void damagedLog(File dir, boolean cut) throws Exception {
+		String what = cut ? "cut short" : "bad crc";
+		MessageLog log = startLog(dir, Long.MAX_VALUE);
+		List<String> lines = appendLines(log, 0, 40);
+
+		File last = lastSegment(dir);
+		int[] record = lastRecord(last);
+		try (RandomAccessFile f = new RandomAccessFile(last, "rw")) {
+			if (cut) {
+				for (int i = record[0] + record[1] / 2; i < record[0] + record[1]; i++) { // What a crash leaves of a record being written
+					f.seek(i);
+					f.write(0);
+				}
+			}
+			else {
+				f.seek(record[0] + record[1] - 1);
+				int b = f.read();
+				f.seek(record[0] + record[1] - 1);
+				f.write(b ^ 0xFF);
+			}
+		}
+
+		MessageLog again = startLog(dir, Long.MAX_VALUE);
+		check(again.nextOffset() == 39, "log " + what + ": the damaged record is dropped");
+		check(matches(again.read(0, 100), lines.subList(0, 39), 0), "log " + what + ": the records before it are kept");
+
+		lines = new ArrayList<String>(lines.subList(0, 39));
+		lines.addAll(appendLines(again, 39, 1));
+		List<MessageLog.Record> all = again.read(0, 100);
+		check((all.size() == 40) && matches(all, lines, 0), "log " + what + ": the next record takes its offset");
+	}
+
+	// Old segments are deleted, what is left is the newest records, still in order
+	private static void retention(File dir) throws Exception {
+		MessageLog log = startLog(dir, 3 * SEGMENT_BYTES);
+		List<String> lines = appendLines(log, 0, 500);
+
+		List<MessageLog.Record> left = log.read(0, 1000);
+		check(segments(dir) <= 4, "retention: old segments deleted");
+		check(!left.isEmpty() && (left.get(0).offset > 0) && (left.get(left.size() - 1).offset == 499),
+				"retention: the newest records are kept");
+		check(matches(left, lines.subList((int) left.get(0).offset, 500), left.get(0).offset),
+				"retention: what is left reads back in order");
+	}
+
+	// Messages wait for users that logged in before, across a restart, and go once
+	private static void inbox(File dir) throws Exception {
+		InboxStore store = new InboxStore(dir, 100, 24 * 3600 * 1000L);
+		store.remember("bob");
+		check(store.store("bob", Frame.of("6 alice bob " + STAMP + " one\r\n")), "inbox: message kept for a known user");
+		check(store.store("bob", Frame.of("6 alice bob " + STAMP + " two\r\n")), "inbox: second message kept");
+		check(!store.store("nobody", Frame.of("6 alice nobody " + STAMP + " lost\r\n")), "inbox: unknown user refused");
+
+		InboxStore again = new InboxStore(dir, 100, 24 * 3600 * 1000L);
+		Frame waiting = again.take("bob");
+		check((waiting != null) && text(waiting).equals(text(Frame.of("6 alice bob " + STAMP + " one\r\n")) +
+				text(Frame.of("6 alice bob " + STAMP + " two\r\n"))), "inbox: messages back after a restart, in order");
+		check(again.take("bob") == null, "inbox: taken messages are gone");
+		check(new InboxStore(dir, 100, 24 * 3600 * 1000L).take("bob") == null, "inbox: delivered stays delivered after a restart");
+		check(again.store("bob", Frame.of("x")), "inbox: known users are remembered across a restart");
+	}
+
+	// A record cut short by a crash is dropped when the store is opened, the ones before it stay
+	private static void inboxCutShort(File dir) throws Exception {
+		InboxStore store = new InboxStore(dir, 100, 24 * 3600 * 1000L);
+		store.remember("bob");
+		store.store("bob", Frame.of("kept"));
+		store.store("bob", Frame.of("cut short"));
+
+		File file = new File(dir, "inbox.dat");
+		try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+			f.setLength(f.length() - 3);
+		}
+
+		InboxStore again = new InboxStore(dir, 100, 24 * 3600 * 1000L);
+		Frame waiting = again.take("bob");
+		check((waiting != null) && text(waiting).equals(text(Frame.of("kept"))), "inbox cut short: earlier message kept");
+		again.store("bob", Frame.of("after"));
+		Frame after = new InboxStore(dir, 100, 24 * 3600 * 1000L).take("bob");
+		check((after != null) && text(after).equals(text(Frame.of("after"))), "inbox cut short: new records follow the good ones");
+	}
+
+	// Once delivered messages are most of the file it is rewritten, what still waits is kept
+	private static void inboxCompaction(File dir) throws Exception {
+		InboxStore store = new InboxStore(dir, 1000, 24 * 3600 * 1000L);
+		char[] big = new char[4000];
+		Arrays.fill(big, 'x');
+
+		store.remember("bob");
+		store.remember("carol");
+		store.remember("dave");
+		for (int i = 0; i < 300; i++) {
+			store.store("bob", Frame.of(new String(big)));
+		}
+		store.store("carol", Frame.of("still waiting"));
+		store.store("dave", Frame.of("for dave"));
+		store.take("bob");
+
+		File file = new File(dir, "inbox.dat");
+		long before = file.length();
+		Frame dave = store.take("dave"); // Finds most of the file delivered
+		check(file.length() < before / 10, "inbox compaction: file rewritten without delivered messages");
+		check((dave != null) && text(dave).equals(text(Frame.of("for dave"))), "inbox compaction: the taking user still gets its messages");
+		check(!new File(dir, "inbox.dat.tmp").exists(), "inbox compaction: no temporary file left");
+
+		InboxStore again = new InboxStore(dir, 1000, 24 * 3600 * 1000L);
+		Frame carol = again.take("carol");
+		check((carol != null) && text(carol).equals(text(Frame.of("still waiting"))), "inbox compaction: waiting messages survive it");
+		check((again.take("bob") == null) && (again.take("dave") == null), "inbox compaction: delivered messages stay delivered");
+		check(again.store("dave", Frame.of("x")), "inbox compaction: known users kept");
+	}
+
+	// What a +binary client gets decodes to the lines a text client gets, whole or a byte at a time
+	private static void binary() {
+		String[] lines = {
+				"5 alice " + STAMP + " hello everyone\r\n",
+				"6 alice bob " + STAMP + " psst\r\n",
+				"10 carol",
+				"9 bob",
+				"12 7 +dave", 	// A fourth name, the table of 3 ids is renewed
+				"5 alice " + STAMP + " back again\r\n",
+				"1 alice,bob Welcome to the chatroom, bob",
+		};
+		BinaryCodec.Ids ids = new BinaryCodec.Ids();
+		ByteArrayOutputStream wire = new ByteArrayOutputStream();
+		List<String> expected = new ArrayList<String>();
+
+		for (String line: lines) {
+			wire.writeBytes(ids.encode(Frame.of(line)).bytes());
+			expected.add(line.endsWith("\r\n") ? line.substring(0, line.length() - 2) : line);
+		}
+		wire.writeBytes(ids.encode(Frame.join(new Frame[] {Frame.of(lines[0]), Frame.of(lines[3])})).bytes());
+		expected.add(expected.get(0));
+		expected.add(expected.get(3));
+		byte[] bytes = wire.toByteArray();
+
+		List<String> whole = new ArrayList<String>();
+		BinaryCodec.Decoder decoder = new BinaryCodec.Decoder();
+		ByteBuffer in = ByteBuffer.wrap(bytes);
+		String line;
+		while ((line = decoder.next(in)) != null) {
+			whole.add(line);
+		}
+		check(whole.equals(expected) && !in.hasRemaining(), "binary: frames decode to the text lines");
+
+		List<String> trickle = new ArrayList<String>();
+		decoder = new BinaryCodec.Decoder();
+		ByteBuffer buffer = ByteBuffer.allocate(bytes.length);
+		for (byte b: bytes) { // Frames split anywhere, like reads from a socket
+			buffer.put(b);
+			buffer.flip();
+			while ((line = decoder.next(buffer)) != null) {
+				trickle.add(line);
+			}
+			buffer.compact();
+		}
+		check(trickle.equals(expected), "binary: frames split over reads decode the same");
+
+		decoder = new BinaryCodec.Decoder();
+		ByteBuffer cut = ByteBuffer.wrap(bytes, 0, bytes.length - 1);
+		int decoded = 0;
+		while (decoder.next(cut) != null) {
+			decoded++;
+		}
+		check((decoded == expected.size() - 1) && cut.hasRemaining(), "binary: a frame cut short waits for the rest");
+	}
+
+	// What a +deflate client gets inflates to the lines a text client gets
+	private static void deflate() throws IOException {
+		String[] lines = {
+				"5 alice " + STAMP + " hello everyone\r\n",
+				"6 alice bob " + STAMP + " psst\r\n",
+				"10 carol",
+				"Private message sent!",
+		};
+		ByteArrayOutputStream wire = new ByteArrayOutputStream();
+		List<String> expected = new ArrayList<String>();
+
+		wire.writeBytes(DeflateCodec.SWITCH.bytes());
+		for (String line: lines) {
+			wire.writeBytes(DeflateCodec.deflate(Frame.of(line)).bytes());
+			expected.add(line.endsWith("\r\n") ? line.substring(0, line.length() - 2) : line);
+			if (line.endsWith("\r\n")) {
+				expected.add(""); // The line separator after \r\n ends an empty line
+			}
+		}
+		wire.writeBytes(DeflateCodec.deflate(Frame.join(new Frame[] {Frame.of(lines[2]), Frame.of(lines[3])})).bytes());
+		expected.add(lines[2]);
+		expected.add(lines[3]);
+		byte[] bytes = wire.toByteArray();
+
+		check(readAll(bytes).equals(expected), "deflate: frames inflate to the text lines");
+
+		byte[] cut = Arrays.copyOf(bytes, bytes.length - 2);
+		boolean failed = false;
+		try {
+			readAll(cut);
+		} catch (IOException e) {
+			failed = true;
+		}
+		check(failed, "deflate: a frame cut short is an error, not a wrong line");
+	}
+
+	// The lines after "21 deflate", read the way SocketReader does
+	private static List<String> readAll(byte[] bytes) throws IOException {
+		DeflateCodec.LineReader reader = new DeflateCodec.LineReader(new ByteArrayInputStream(bytes));
+		List<String> out = new ArrayList<String>();
+
+		String first = reader.readLine();
+		check("21 deflate".equals(first), "deflate: switch line comes as text");
+		reader.inflate();
+
+		String line;
+		while ((line = reader.readLine()) != null) {
+			out.add(line);
+		}
+		reader.close();
+		return out;
+	}
+
+	private static MessageLog startLog(File dir, long retention_bytes) throws IOException {
+		MessageLog log = new MessageLog(dir, SEGMENT_BYTES, MessageLog.FsyncPolicy.NEVER, 0, retention_bytes, Long.MAX_VALUE);
+		Thread writer = new Thread(log, "chat-log-check");
+		writer.setDaemon(true);
+		writer.start();
+		return log;
+	}
+
+	// Append lines to rooms r0..r2 and wait for the writer to get to them
+	private static List<String> appendLines(MessageLog log, int first, int count) throws InterruptedException {
+		List<String> lines = new ArrayList<String>();
+
+		for (int i = first; i < first + count; i++) {
+			String line = "5 user" + (i % 7) + " " + STAMP + " message " + i + "\r\n";
+			log.append("r" + (i % 3), Frame.of(line));
+			lines.add(line);
+		}
+		long deadline = System.currentTimeMillis() + 10_000;
+		while ((log.nextOffset() < first + count) && (System.currentTimeMillis() < deadline)) {
+			Thread.sleep(1);
+		}
+		return lines;
+	}
+
+	// The records are the lines in order, written from offset first on, to room r<offset % 3>
+	private static boolean matches(List<MessageLog.Record> records, List<String> lines, long first) {
+		if (records.size() > lines.size()) {
+			return false;
+		}
+		for (int i = 0; i < records.size(); i++) {
+			MessageLog.Record r = records.get(i);
+			long offset = first + i;
+			if ((r.offset != offset) || !r.room.equals("r" + (offset % 3)) ||
+					!Arrays.equals(r.line, Frame.of(lines.get(i)).bytes())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int segments(File dir) {
+		File[] files = dir.listFiles((d, name) -> name.endsWith(".log"));
+		return (files == null) ? 0 : files.length;
+	}
+
+	private static File lastSegment(File dir) {
+		File[] files = dir.listFiles((d, name) -> name.endsWith(".log"));
+		Arrays.sort(files);
+		return files[files.length - 1];
+	}
+
+	// Position and size of the last record in a segment, walking <length><crc> from the start
+	private static int[] lastRecord(File segment) throws IOException {
+		try (RandomAccessFile f = new RandomAccessFile(segment, "r")) {
+			int position = 0, last = 0, size = 0;
+			while (position + 8 <= f.length()) {
+				f.seek(position);
+				int body = f.readInt();
+				if (body <= 0) {
+					break;
+				}
+				last = position;
+				size = 8 + body;
+				position += size;
+			}
+			return new int[] {last, size};
+		}
+	}
+
+	private static String text(Frame f) {
+		return new String(f.bytes(), Frame.CHARSET);
+	}
+
+	private static void check(boolean ok, String what) {
+		System.out.println((ok ? "ok      " : "FAILED  ") + what);
+		if (!ok) {
+			failures++;
+		}
+	}
+
+	private static void delete(File f) {
+		File[] children = f.listFiles();
+		if (children != null) {
+			for (File c: children) {
+				delete(c);
+			}
+		}
+		f.delete();
+	}
+}
@@ -0,0 +1,303 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Headless load generator for capacity planning.
+ *
+ * Opens N sessions against a running ChatServer. Every session speaks the
+ * protocol through its own SocketReader: commands are built with its
+ * constructCommand methods and the welcome is parsed with its command1.
+ * Once logged in, the sessions send a mix of general (command 3) and private
+ * (command 4) messages at a fixed rate. Every message carries its send time,
+ * so each delivery gives a latency, and the number of deliveries expected
+ * against received gives the loss.
+ *
+ * Usage: java -cp target/classes:target/test-classes LoadGenerator [host] [port] [sessions] [seconds] [rate] [whisper]
+ * 	sessions - concurrent sessions (default 1000)
+ * 	seconds - how long to send for (default 30)
+ * 	rate - messages per second per session (default 0.1)
+ * 	whisper - fraction of messages sent as private messages (default 0.2)
+ *
+ * The server must allow enough queued replies per client for the broadcast
+ * rate, see -Dchat.queue.capacity.
+ *
+ */
+public class LoadGenerator {
+	// Start of a message this run sent, history a server replays from earlier runs does not count
+	private static final String PAYLOAD_MARK = "L" + Long.toString(System.currentTimeMillis(), 36) + "-";
+	private static final int TICK_MILLIS = 10;
+
+	private final Session[] sessions;
+	private final Selector selector;
+	private volatile boolean running = true;
+
+	// Counters, shared by the sender and the receiver thread
+	private final AtomicInteger online = new AtomicInteger();
+	private final AtomicInteger refused = new AtomicInteger(); 	// Command 2, name in use
+	private final AtomicLong sent_general = new AtomicLong();
+	private final AtomicLong sent_private = new AtomicLong();
+	private final AtomicLong expected = new AtomicLong(); 		// Deliveries the sends should cause
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong no_such_user = new AtomicLong();
+	private final Histogram latency = new Histogram();
+
+	public static void main(String[] args) throws Exception {
+		String host = (args.length > 0) ? args[0] : "127.0.0.1";
+		int port = (args.length > 1) ? Integer.parseInt(args[1]) : 1337;
+		int sessions = (args.length > 2) ? Integer.parseInt(args[2]) : 1000;
+		int seconds = (args.length > 3) ? Integer.parseInt(args[3]) : 30;
+		double rate = (args.length > 4) ? Double.parseDouble(args[4]) : 0.1;
+		double whisper = (args.length > 5) ? Double.parseDouble(args[5]) : 0.2;
+
+		new LoadGenerator(sessions).run(host, port, seconds, rate, whisper);
+		System.exit(0);
+	}
+
+	public LoadGenerator(int sessions) throws IOException {
+		this.sessions = new Session[sessions];
+		this.selector = Selector.open();
+	}
+
+	public void run(String host, int port, int seconds, double rate, double whisper) throws Exception {
+		Thread receiver = new Thread(this::receive, "load-receiver");
+
+		// Log everyone in
+		for (int i = 0; i < sessions.length; i++) {
+			Session s = new Session(i, new SocketReader(null, host, port));
+			s.channel = SocketChannel.open(new InetSocketAddress(host, port));
+			s.channel.configureBlocking(false);
+			s.channel.register(selector, SelectionKey.OP_READ, s);
+			sessions[i] = s;
+		}
+		receiver.start();
+		for (Session s: sessions) {
+			s.write(s.codec.constructCommand0("/i " + s.name));
+		}
+
+		long login_deadline = System.currentTimeMillis() + 30_000;
+		while ((online.get() + refused.get() < sessions.length) && (System.currentTimeMillis() < login_deadline)) {
+			Thread.sleep(100);
+		}
+		System.out.printf("logged in %d of %d sessions, %d refused%n", online.get(), sessions.length, refused.get());
+
+		// Send for the configured time, a share of the total rate every tick
+		double per_tick = rate * sessions.length * TICK_MILLIS / 1000.0;
+		double owed = 0;
+		long end = System.currentTimeMillis() + seconds * 1000L;
+		long next_report = System.currentTimeMillis() + 5000;
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+
+		while (System.currentTimeMillis() < end) {
+			owed += per_tick;
+			while (owed >= 1) {
+				owed--;
+				Session from = sessions[random.nextInt(sessions.length)];
+				if (!from.logged_in) {
+					continue;
+				}
+				String payload = PAYLOAD_MARK + from.id + ":" + System.nanoTime();
+
+				if (random.nextDouble() < whisper) {
+					Session to = sessions[random.nextInt(sessions.length)];
+					expected.incrementAndGet();
+					sent_private.incrementAndGet();
+					from.write(from.codec.constructCommand4("/w " + to.name + " " + payload));
+				}
+				else {
+					expected.addAndGet(online.get()); // Every logged in session gets it, the sender too
+					sent_general.incrementAndGet();
+					from.write(from.codec.constructCommand3("/a " + payload));
+				}
+			}
+
+			if (System.currentTimeMillis() >= next_report) {
+				report("running");
+				next_report += 5000;
+			}
+			Thread.sleep(TICK_MILLIS);
+		}
+
+		Thread.sleep(2000); // Let what is in flight arrive
+		report("final");
+
+		running = false;
+		selector.wakeup();
+		receiver.join();
+		for (Session s: sessions) {
+			try {
+				s.write(s.codec.constructCommand7());
+				s.channel.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	private void report(String when) {
+		long exp = expected.get();
+		long got = received.get();
+
+		System.out.printf("%s: online=%d sent=%d general + %d private, delivered=%d of %d (loss %.3f%%), no such user=%d, " +
+				"latency p50=%dus p99=%dus p999=%dus max=%dus%n",
+				when, online.get(), sent_general.get(), sent_private.get(), got, exp,
+				(exp == 0) ? 0.0 : 100.0 * Math.max(0, exp - got) / exp, no_such_user.get(),
+				latency.percentile(0.50), latency.percentile(0.99), latency.percentile(0.999), latency.percentile(1.0));
+	}
+
+	// Reads all sessions on one thread
+	private void receive() {
+		ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+		CommandParser parser = new CommandParser();
+
+		try {
+			while (running) {
+				selector.select();
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					Session s = (Session) key.attachment();
+
+					buf.clear();
+					int n;
+					try {
+						n = s.channel.read(buf);
+					} catch (IOException e) {
+						n = -1;
+					}
+					if (n == -1) { // Server hung up on us
+						key.cancel();
+						if (s.logged_in) {
+							s.logged_in = false;
+							online.decrementAndGet();
+						}
+						continue;
+					}
+
+					buf.flip();
+					String text = Frame.CHARSET.decode(buf).toString();
+					for (int i = 0; i < text.length(); i++) {
+						char ch = text.charAt(i);
+						if ((ch == '\n') || (ch == '\r')) {
+							if (s.line.length() > 0) {
+								onLine(s, s.line.toString(), parser);
+								s.line.setLength(0);
+							}
+						}
+						else {
+							s.line.append(ch);
+						}
+					}
+				}
+			}
+		} catch (IOException ioe) {
+			System.err.println(ioe);
+		}
+	}
+
+	private void onLine(Session s, String line, CommandParser parser) {
+		long now = System.nanoTime();
+		String payload = null;
+
+		switch (CommandParser.commandOf(line)) {
+			case 1: // Welcome, SocketReader works out our user name
+				s.codec.command1(line);
+				s.logged_in = true;
+				online.incrementAndGet();
+				return;
+			case 2:
+				refused.incrementAndGet();
+				return;
+			case 5: // <5> <Username> <time> <message>
+				if (parser.parse(line, 4) == 4) {
+					payload = parser.field(3);
+				}
+				break;
+			case 6: // <6> <fromUsername> <toUsername> <time> <message>
+				if (parser.parse(line, 5) == 5) {
+					payload = parser.field(4);
+				}
+				break;
+			default:
+				if (line.startsWith("No such user")) {
+					no_such_user.incrementAndGet();
+				}
+				return;
+		}
+
+		if ((payload != null) && payload.startsWith(PAYLOAD_MARK)) {
+			long sent = Long.parseLong(payload.substring(payload.lastIndexOf(':') + 1).trim());
+			latency.record((now - sent) / 1000);
+			received.incrementAndGet();
+		}
+	}
+
+	/**
+	 * One simulated client
+	 */
+	private static class Session {
+		final int id;
+		final String name;
+		final SocketReader codec; 		// Builds and parses the protocol like the real client
+		SocketChannel channel;
+		final StringBuilder line = new StringBuilder();
+		volatile boolean logged_in = false;
+
+		Session(int id, SocketReader codec) {
+			this.id = id;
+			this.name = "lg" + id;
+			this.codec = codec;
+		}
+
+		// Only the thread that logs in and then the sender thread write
+		void write(String command) throws IOException {
+			ByteBuffer b = ByteBuffer.wrap(command.getBytes(Frame.CHARSET));
+
+			while (b.hasRemaining()) {
+				if (channel.write(b) == 0) {
+					Thread.yield(); // Socket buffer is full, wait for the server to read
+				}
+			}
+		}
+	}
+
+	/**
+	 * Latencies in microseconds, in buckets 1% apart
+	 */
+	private static class Histogram {
+		private static final double BASE = Math.log(1.01);
+		private final AtomicLong[] buckets = new AtomicLong[2048];
+		private final AtomicLong count = new AtomicLong();
+
+		Histogram() {
+			for (int i = 0; i < buckets.length; i++) {
+				buckets[i] = new AtomicLong();
+			}
+		}
+
+		void record(long micros) {
+			int i = (micros <= 1) ? 0 : (int) (Math.log(micros) / BASE);
+			buckets[Math.min(i, buckets.length - 1)].incrementAndGet();
+			count.incrementAndGet();
+		}
+
+		long percentile(double p) {
+			long target = (long) Math.ceil(count.get() * p);
+			long seen = 0;
+
+			for (int i = 0; i < buckets.length; i++) {
+				seen += buckets[i].get();
+				if ((seen >= target) && (seen > 0)) {
+					return (long) Math.pow(1.01, i + 1);
+				}
+			}
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,78 @@
+import java.lang.management.ManagementFactory;
+
+/**
+ * Bytes allocated per message when taking a command 6 line apart,
+ * the old indexOf/substring way against CommandParser.
+ * 
+ * Both build the display text of SocketReader.command6 into a reused
+ * StringBuilder, so the numbers only count the cost of parsing.
+ * 
+ * Usage: java ParserAllocationBenchmark [messages]
+ *
+ */
+public class ParserAllocationBenchmark {
+	private static final String LINE = "6 alice bob 2026:01:01:00:00:00 are you coming to the meeting later today?";
+	
+	private static long sink = 0; // Keeps the JIT from dropping the work
+	
+	public static void main(String[] args) {
+		int messages = (args.length > 0) ? Integer.parseInt(args[0]) : 5_000_000;
+		StringBuilder out = new StringBuilder(256);
+		CommandParser parser = new CommandParser();
+		
+		for (int round = 0; round < 3; round++) { // The first rounds warm the JIT up
+			long before = allocatedBytes();
+			for (int i = 0; i < messages; i++) {
+				substrings(LINE, out);
+			}
+			long substrings = allocatedBytes() - before;
+			
+			before = allocatedBytes();
+			for (int i = 0; i < messages; i++) {
+				fields(LINE, parser, out);
+			}
+			long fields = allocatedBytes() - before;
+			
+			System.out.printf("round %d: indexOf/substring %.1f B/msg, CommandParser %.1f B/msg%n",
+					round, (double) substrings / messages, (double) fields / messages);
+		}
+		System.out.println(sink);
+	}
+	
+	// How SocketReader.command6 used to take the line apart
+	private static void substrings(String line, StringBuilder out) {
+		int space = line.indexOf(" ");
+		line = line.substring(space+1);
+		
+		space = line.indexOf(" ");
+		String from_user = line.substring(0, space);
+		line = line.substring(space+1);
+		
+		space = line.indexOf(" ");
+		line = line.substring(space+1);
+		
+		space = line.indexOf(" ");
+		String time = line.substring(0, space);
+		String message = line.substring(space+1);
+		
+		out.setLength(0);
+		out.append('[').append(time).append("][GMT] Private message from ").append(from_user).append(":\n").append(message);
+		sink += out.length();
+	}
+	
+	private static void fields(String line, CommandParser parser, StringBuilder out) {
+		parser.parse(line, 5);
+		
+		out.setLength(0);
+		out.append('[');
+		parser.appendField(out, 3).append("][GMT] Private message from ");
+		parser.appendField(out, 1).append(":\n");
+		parser.appendField(out, 4);
+		sink += out.length();
+	}
+	
+	private static long allocatedBytes() {
+		return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+				.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+}
@@ -0,0 +1,28 @@
+#!/bin/sh
+# Runs a cluster of ChatServer nodes on loopback, every node linked to every other one.
+# Node i takes clients on port 1400+i and the other nodes on 7400+i.
+# Usage: bench/cluster-demo.sh [nodes] [mode]
+
+cd "$(dirname "$0")/.." || exit 1
+
+OUT=$(mktemp -d)
+javac -encoding windows-1252 -d "$OUT" src/*.java || exit 1
+
+NODES=${1:-3}
+SECRET=$(od -An -N16 -tx1 /dev/urandom | tr -d ' \n')
+PIDS=""
+
+for i in $(seq 1 "$NODES"); do
+	PEERS=""
+	for j in $(seq 1 "$NODES"); do
+		[ "$j" -ne "$i" ] && PEERS="$PEERS${PEERS:+,}127.0.0.1:$((7400 + j))"
+	done
+	java -cp "$OUT" -Dchat.cluster.port=$((7400 + i)) -Dchat.cluster.peers="$PEERS" -Dchat.cluster.secret="$SECRET" \
+		-Dchat.log.dir="$OUT/log-$i" -Dchat.inbox.dir="$OUT/inbox-$i" \
+		ChatServer "${2:-nio}" $((1400 + i)) &
+	PIDS="$PIDS $!"
+	echo "node $i: clients on port $((1400 + i))"
+done
+
+trap 'kill $PIDS; rm -rf "$OUT"' INT TERM
+wait
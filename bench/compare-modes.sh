@@ -0,0 +1,14 @@
+#!/bin/sh
+# Runs ConnectionModeBenchmark for every server mode, one JVM each.
+# Usage: bench/compare-modes.sh [clients] [messages]
+
+cd "$(dirname "$0")/.." || exit 1
+
+OUT=$(mktemp -d)
+javac -encoding windows-1252 -d "$OUT" src/*.java bench/ConnectionModeBenchmark.java || exit 1
+
+for mode in threads virtual nio; do
+	java -cp "$OUT" ConnectionModeBenchmark "$mode" "${1:-500}" "${2:-1000}"
+done
+
+rm -rf "$OUT"
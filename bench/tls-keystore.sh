@@ -0,0 +1,21 @@
+#!/bin/sh
+# Makes a self-signed key for testing TLS on this machine, and a trust store for the clients.
+# Usage: bench/tls-keystore.sh [dir] [password]
+# Then: java -Dchat.tls.keystore=tls/server.p12 ChatServer nio
+#       java -Dchat.tls=true -Djavax.net.ssl.trustStore=tls/trust.p12 -Djavax.net.ssl.trustStorePassword=changeit ChatController
+
+cd "$(dirname "$0")/.." || exit 1
+
+DIR=${1:-tls}
+PASS=${2:-changeit}
+mkdir -p "$DIR" || exit 1
+rm -f "$DIR/server.p12" "$DIR/trust.p12" "$DIR/server.cer"
+
+keytool -genkeypair -alias chat -keyalg EC -groupname secp256r1 -validity 365 \
+	-dname "CN=localhost" -ext "SAN=dns:localhost,ip:127.0.0.1" \
+	-storetype PKCS12 -keystore "$DIR/server.p12" -storepass "$PASS" || exit 1
+keytool -exportcert -alias chat -keystore "$DIR/server.p12" -storepass "$PASS" -file "$DIR/server.cer" || exit 1
+keytool -importcert -noprompt -alias chat -file "$DIR/server.cer" \
+	-storetype PKCS12 -keystore "$DIR/trust.p12" -storepass "$PASS" || exit 1
+
+echo "$DIR/server.p12 for the server, $DIR/trust.p12 for the clients"
@@ -0,0 +1,366 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compact binary form of what the server sends, for clients that log in with +binary.
+ *
+ * The server answers such a login with the text line "19 binary", every
+ * frame after it is binary:
+ * 	<length><command><fields>
+ * length and numbers are varints (7 bits a byte, low bits first), the
+ * last field is the rest of the frame so it needs no length of its own.
+ * 	5		<user id><time><message>
+ * 	6		<from id><to id><time><message>
+ * 	9, 10	<user id>
+ * 	12		<version><'+' or '-'><user id>
+ * 	20		<user id><user name>, sent before the first frame that uses the id
+ * 	0		<line>, any other line as text
+ * time is seconds since the epoch. User names are interned to ids, so a
+ * frame can be encoded once and shared by every binary client: only the
+ * id definitions are per client.
+ *
+ * The id table holds at most ServerConfig.BINARY_IDS names. Once it is
+ * full a new, empty table takes its place and the ids are given out
+ * again. Every binary frame knows the table it was encoded with, and a
+ * client is sent command 20 again for the ids of a frame whose table is
+ * not the one of its last frame, so an id that changed meaning is always
+ * redefined before it is used.
+ *
+ * Clients keep sending text lines, one per command, the fan-out from the
+ * server is where the bytes are. Text clients never see any of this.
+ *
+ */
+public class BinaryCodec {
+	public static final int TEXT = 0;
+	public static final int USER_ID = 20;
+
+	// Queued before the first binary frame of a client, the writer switches when it gets to it
+	static final Frame SWITCH = Frame.control("19 binary");
+
+	private static volatile Table table = new Table(); // Where new frames get their ids
+
+	/**
+	 * Encode a text frame, once for all binary clients (see Frame.binary()).
+	 * A frame of several lines becomes several binary frames back to back.
+	 *
+	 * @param text - the frame as text clients get it
+	 *
+	 * @return Frame - the binary frames, with the ids of the users they mention
+	 */
+	static Frame encode(Frame text) {
+		for (int attempt = 0; attempt < 3; attempt++) {
+			Table t = table;
+			Frame binary = encode(text, t);
+			if (binary != null) {
+				return binary;
+			}
+			renew(t); // No room for a name in it, encode again with the next one
+		}
+		return encode(text, null); // Mentions more names than a table holds, it goes as text
+	}
+
+	// The frame with ids from t, null if t is full. Without a table every line is sent as text.
+	private static Frame encode(Frame text, Table t) {
+		String lines = new String(text.bytes(), Frame.CHARSET);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(text.length());
+		ByteArrayOutputStream payload = new ByteArrayOutputStream(text.length());
+		CommandParser parser = new CommandParser();
+		List<Integer> users = new ArrayList<Integer>(2);
+
+		int start = 0;
+		for (int i = 0; i <= lines.length(); i++) {
+			if ((i == lines.length()) || (lines.charAt(i) == '\n') || (lines.charAt(i) == '\r')) {
+				if (i > start) { // Commands end with \r\n before the line separator, there are no empty lines to send
+					payload.reset();
+					encodeLine(lines.substring(start, i), parser, payload, users, t);
+					writeVarint(out, payload.size());
+					out.writeBytes(payload.toByteArray());
+				}
+				start = i + 1;
+			}
+		}
+
+		if (users.contains(-1)) {
+			return null;
+		}
+		int[] mentioned = new int[users.size()];
+		for (int i = 0; i < mentioned.length; i++) {
+			mentioned[i] = users.get(i);
+		}
+		return Frame.wrapBinary(out.toByteArray(), mentioned, (mentioned.length == 0) ? null : t);
+	}
+
+	private static void encodeLine(String line, CommandParser parser, ByteArrayOutputStream out, List<Integer> users, Table t) {
+		int command = (t == null) ? TEXT : CommandParser.commandOf(line);
+		long time;
+
+		switch (command) {
+			case 5: // <5> <user> <time> <message>
+				if ((parser.parse(line, 4) == 4) && ((time = parseTime(parser.field(2))) >= 0)) {
+					writeVarint(out, 5);
+					writeUser(out, parser.field(1), users, t);
+					writeVarint(out, time);
+					writeRest(out, parser.field(3));
+					return;
+				}
+				break;
+			case 6: // <6> <from> <to> <time> <message>
+				if ((parser.parse(line, 5) == 5) && ((time = parseTime(parser.field(3))) >= 0)) {
+					writeVarint(out, 6);
+					writeUser(out, parser.field(1), users, t);
+					writeUser(out, parser.field(2), users, t);
+					writeVarint(out, time);
+					writeRest(out, parser.field(4));
+					return;
+				}
+				break;
+			case 9:
+			case 10: // <9 or 10> <user>
+				if (parser.parse(line, 2) == 2) {
+					writeVarint(out, command);
+					writeUser(out, parser.field(1), users, t);
+					return;
+				}
+				break;
+			case 12: // <12> <version> <+ or -><user>
+				if ((parser.parse(line, 3) == 3) && (parser.length(2) > 1)) {
+					String change = parser.field(2);
+					writeVarint(out, 12);
+					writeVarint(out, Long.parseLong(parser.field(1)));
+					out.write(change.charAt(0));
+					writeUser(out, change.substring(1), users, t);
+					return;
+				}
+				break;
+		}
+
+		writeVarint(out, TEXT); // Everything else is rare, it goes as it is
+		writeRest(out, line);
+	}
+
+	// Start a new table in place of a full one, unless another thread already did
+	private static synchronized void renew(Table full) {
+		if (table == full) {
+			table = new Table();
+		}
+	}
+
+	// <20><id><user name>, encoded once like any other frame
+	private static Frame definition(int id, String username) {
+		ByteArrayOutputStream payload = new ByteArrayOutputStream(32);
+		writeVarint(payload, USER_ID);
+		writeVarint(payload, id);
+		writeRest(payload, username);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(payload.size() + 1);
+		writeVarint(out, payload.size());
+		out.writeBytes(payload.toByteArray());
+		return Frame.wrap(out.toByteArray());
+	}
+
+	// -1 for the id when t is full, the frame is then encoded again
+	private static void writeUser(ByteArrayOutputStream out, String username, List<Integer> users, Table t) {
+		int id = t.idOf(username);
+		if (!users.contains(id)) {
+			users.add(id);
+		}
+		writeVarint(out, id);
+	}
+
+	private static void writeRest(ByteArrayOutputStream out, String text) {
+		byte[] b = text.getBytes(Frame.CHARSET);
+		out.write(b, 0, b.length);
+	}
+
+	static void writeVarint(ByteArrayOutputStream out, long value) {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	static long readVarint(ByteBuffer in) {
+		long value = 0;
+		int shift = 0;
+		byte b;
+
+		do {
+			b = in.get();
+			value |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while (b < 0);
+		return value;
+	}
+
+	// yyyy:MM:dd:HH:mm:ss in GMT as seconds since the epoch, -1 if it is not a GmtClock stamp
+	private static long parseTime(String stamp) {
+		if (stamp.length() != 19) {
+			return -1;
+		}
+		try {
+			return LocalDateTime.of(Integer.parseInt(stamp.substring(0, 4)), Integer.parseInt(stamp.substring(5, 7)),
+					Integer.parseInt(stamp.substring(8, 10)), Integer.parseInt(stamp.substring(11, 13)),
+					Integer.parseInt(stamp.substring(14, 16)), Integer.parseInt(stamp.substring(17, 19)))
+					.toEpochSecond(ZoneOffset.UTC);
+		} catch (RuntimeException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * User names and their ids, up to ServerConfig.BINARY_IDS of them.
+	 * Ids are never given a new name within one table.
+	 */
+	static class Table {
+		private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+		private final ConcurrentHashMap<Integer, Frame> definitions = new ConcurrentHashMap<Integer, Frame>(); // Command 20 of every id
+		private final AtomicInteger next_id = new AtomicInteger();
+
+		// Id of a user name, -1 if the table is full
+		int idOf(String username) {
+			Integer id = ids.get(username);
+			if (id == null) {
+				id = ids.computeIfAbsent(username, u -> {
+					int next = next_id.getAndIncrement();
+					if (next >= ServerConfig.BINARY_IDS) {
+						return null; // Nothing is added
+					}
+					definitions.put(next, definition(next, u));
+					return next;
+				});
+			}
+			return (id == null) ? -1 : id;
+		}
+	}
+
+	/**
+	 * The binary side of one client's connection: which user ids it has
+	 * been told about. Only used by the thread that writes to the client.
+	 */
+	static class Ids {
+		private final BitSet known = new BitSet();
+		private Table table; 	// What known is about
+
+		/**
+		 * What to write for a queued frame: its shared binary form, after
+		 * command 20 for every user in it the client does not know yet.
+		 *
+		 * @param message - the text frame from the queue
+		 *
+		 * @return Frame - the binary frame
+		 */
+		Frame encode(Frame message) {
+			Frame binary = message.binary();
+			List<Frame> frames = null;
+
+			if ((binary.table() != null) && (binary.table() != table)) { // Ids from another table may mean other users
+				table = binary.table();
+				known.clear();
+			}
+
+			for (int id: binary.users()) {
+				if (!known.get(id)) {
+					if (frames == null) {
+						frames = new ArrayList<Frame>();
+					}
+					frames.add(table.definitions.get(id));
+					known.set(id);
+				}
+			}
+			if (frames == null) {
+				return binary;
+			}
+			frames.add(binary);
+			return Frame.join(frames.toArray(new Frame[0]));
+		}
+	}
+
+	/**
+	 * Turns binary frames back into the lines a text client would have
+	 * read, for clients and tools that log in with +binary.
+	 */
+	public static class Decoder {
+		private final ArrayList<String> names = new ArrayList<String>();
+
+		/**
+		 * The next line in the buffer, if a whole frame is there
+		 *
+		 * @param in - bytes from the server, in read mode
+		 *
+		 * @return String - the line without a line terminator, or null if in needs more bytes
+		 */
+		public String next(ByteBuffer in) {
+			while (true) {
+				in.mark();
+				if (!hasVarint(in)) {
+					return null;
+				}
+				int length = (int) readVarint(in);
+				if (in.remaining() < length) {
+					in.reset();
+					return null;
+				}
+
+				ByteBuffer frame = in.slice();
+				frame.limit(length);
+				in.position(in.position() + length);
+
+				int command = (int) readVarint(frame);
+				if (command == USER_ID) {
+					int id = (int) readVarint(frame);
+					while (names.size() <= id) {
+						names.add(null);
+					}
+					names.set(id, rest(frame));
+					continue;
+				}
+				return decode(command, frame);
+			}
+		}
+
+		private String decode(int command, ByteBuffer frame) {
+			switch (command) {
+				case 5:
+					return "5 " + user(frame) + " " + time(frame) + " " + rest(frame);
+				case 6:
+					return "6 " + user(frame) + " " + user(frame) + " " + time(frame) + " " + rest(frame);
+				case 9:
+				case 10:
+					return command + " " + user(frame);
+				case 12:
+					return "12 " + readVarint(frame) + " " + (char) frame.get() + user(frame);
+				default:
+					return rest(frame);
+			}
+		}
+
+		private String user(ByteBuffer frame) {
+			return names.get((int) readVarint(frame));
+		}
+
+		private static String time(ByteBuffer frame) {
+			return GmtClock.format(readVarint(frame) * 1000);
+		}
+
+		private static String rest(ByteBuffer frame) {
+			return Frame.CHARSET.decode(frame).toString();
+		}
+
+		private static boolean hasVarint(ByteBuffer in) {
+			for (int i = in.position(); i < in.limit(); i++) {
+				if (in.get(i) >= 0) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+}
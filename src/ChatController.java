@@ -7,16 +7,16 @@ import java.awt.event.ActionEvent;import java.awt.event.ActionListener;import
 
 public class ChatController implements PropertyChangeListener {
 	private ChatView view;
-	private ChatModel model;	    /**     * properties constants called by the GUI event listeners of the view.     */    public static final String CONVERSATION_PROPERTY = "conversation";        public ChatController() {    	view = new ChatView();		model = new ChatModel();		model.addPropertyChangeListener(this);    }
+	private ChatModel model;	    /**     * properties constants called by the GUI event listeners of the view.     */    public static final String CONVERSATION_PROPERTY = "conversation";    public static final String ROSTER_PROPERTY = "roster"; 		// Everyone online, on login    public static final String USER_JOINED_PROPERTY = "joined";    public static final String USER_LEFT_PROPERTY = "left";        public ChatController() {    	view = new ChatView();		model = new ChatModel();		model.addPropertyChangeListener(this);    }
 	public static void main(String[] args) {		ChatController controller = new ChatController();
 		
 		controller.view.setSendListener(new ActionListener() {
 			public void actionPerformed(ActionEvent arg0) {
-				final String message1 = controller.view.getSendText();				controller.model.setClientMessage(message1);				controller.model.sendToServer();
+				final String message1 = controller.view.getSendText();				controller.model.send(message1);
 			}
 		});		
 		controller.view.setExitListener(new ActionListener() {
-			public void actionPerformed(ActionEvent arg0) {				controller.model.setClientMessage("/o"); // Client clicks Exit so send a disconnect request				controller.model.sendToServer();
+			public void actionPerformed(ActionEvent arg0) {				controller.model.send("/o"); // Client clicks Exit so send a disconnect request				controller.model.awaitSent(1000); // Let it reach the server before exiting
 				System.exit(0);
 			}
 		});
@@ -25,7 +25,7 @@ public class ChatController implements PropertyChangeListener {
 				/** not implemented */
 			}
 			public void keyPressed(KeyEvent arg0) {
-	            if (arg0.getKeyCode() == KeyEvent.VK_ENTER) {	            	final String message1 = controller.view.getSendText();					controller.model.setClientMessage(message1);					controller.model.sendToServer();
+	            if (arg0.getKeyCode() == KeyEvent.VK_ENTER) {	            	final String message1 = controller.view.getSendText();					controller.model.send(message1);
 	            }
 			}
 			public void keyReleased(KeyEvent arg0) {
@@ -1,6 +1,6 @@
-import java.beans.PropertyChangeListener;import java.beans.PropertyChangeSupport;import java.util.concurrent.Executor;import java.util.concurrent.Executors;/**
+import java.beans.PropertyChangeListener;import java.beans.PropertyChangeSupport;import java.util.List;import java.util.concurrent.ArrayBlockingQueue;import java.util.concurrent.Executor;import java.util.concurrent.Executors;/**
  * The model for the MVC pattern.
  */
-public class ChatModel {	private static final Executor exec = Executors.newCachedThreadPool();	private static volatile String server_message; 	private static volatile String client_message;	private Runnable s_reader;		protected PropertyChangeSupport propertyChangeSupport;		// Register this class for property change listener	public void addPropertyChangeListener(PropertyChangeListener listener) {        propertyChangeSupport.addPropertyChangeListener(listener);    }	public ChatModel() {		propertyChangeSupport = new PropertyChangeSupport(this);		s_reader = new SocketReader(this);		exec.execute(s_reader);	}	/**	 * This method runs when server sends a new message to client(s)	 * It fire a property change and notify ChatView to update the view	 * 	 */	public void getServerMessage() {		String new_message = null;		String prev_message = null;		try {			while (server_message == null) { // load new message from server				Thread.sleep(100); // Sleep for 100ms so that the other thread can update			} 			new_message = server_message;			server_message = null; // Users got the message, so clear the server message		} catch (InterruptedException e) {}		// Tell ChatView to print the new message from server		propertyChangeSupport.firePropertyChange(ChatController.CONVERSATION_PROPERTY, prev_message, new_message);	}
-	public void setServerMessage(String m) {		if (m != null)			server_message = m;	}	public String getClientMessage() {		return client_message;	}	public void setClientMessage(String m) {		if (m != null)			client_message = m;	}	public void sendToServer() {		((SocketReader)s_reader).setSendMessage(true); // There is a message to send to the server	}
+public class ChatModel {	private static final Executor exec = Executors.newCachedThreadPool();	private static final int SEND_QUEUE_SIZE = 256; // Client's messages that can wait for the socket	// Client's messages in the order they were typed, SocketReader takes them from here	private final ArrayBlockingQueue<String> client_messages = new ArrayBlockingQueue<String>(SEND_QUEUE_SIZE);	private long queued = 0; 	// Messages put on client_messages so far	private long sent = 0; 		// Messages SocketReader wrote to the socket so far	private volatile boolean closed = false; 	// The connection to the server failed or ended	private Runnable s_reader;		protected PropertyChangeSupport propertyChangeSupport;		// Register this class for property change listener	public void addPropertyChangeListener(PropertyChangeListener listener) {        propertyChangeSupport.addPropertyChangeListener(listener);    }	public ChatModel() {		propertyChangeSupport = new PropertyChangeSupport(this);		s_reader = new SocketReader(this);		exec.execute(s_reader);	}	/**	 * This method runs when server sends a new message to client(s)	 * It fire a property change and notify ChatView to update the view	 * right away, from the thread that read the message	 * 	 */
+	public void setServerMessage(String m) {		if (m != null)			// Tell ChatView to print the new message from server			propertyChangeSupport.firePropertyChange(ChatController.CONVERSATION_PROPERTY, null, m);	}	/**	 * Changes to the users online. After the full list on login only the	 * user who joined or left is sent, ChatView keeps its own sorted copy.	 */	public void setRoster(String[] users) {		propertyChangeSupport.firePropertyChange(ChatController.ROSTER_PROPERTY, null, users);	}	public void userJoined(String user) {		propertyChangeSupport.firePropertyChange(ChatController.USER_JOINED_PROPERTY, null, user);	}	public void userLeft(String user) {		propertyChangeSupport.firePropertyChange(ChatController.USER_LEFT_PROPERTY, null, user);	}	/**	 * Queue what client typed for the server, in the order it was typed.	 * Pasted text with several lines is sent as one message per line, and	 * every line goes the same way as the first (e.g. all to </w><" "><user>).	 * Never waits, this runs on the event dispatch thread: when there is no	 * connection or SEND_QUEUE_SIZE messages are already waiting for the	 * socket, the view is told and the rest is not sent.	 * 	 * @param m - client's input	 */	public void send(String m) {		if (m == null)			return;		if (closed) {			setServerMessage("Not connected to the server, the message was not sent");			return;		}		String[] lines = m.split("\r\n|\r|\n");		String prefix = continuationPrefix(lines[0]);		for (int i = 0; i < lines.length; i++) {			if (lines[i].isEmpty())				continue;			if (!client_messages.offer((i == 0) ? lines[i] : prefix + lines[i])) {				setServerMessage("Send queue full, not sent: " + lines[i]);				return;			}			synchronized (this) {				queued++;			}		}	}	// SocketReader lost the server or could not reach it, nothing more can be sent	public void connectionClosed() {		closed = true;	}	// </a><" "> or </w><" "><user><" "> of a first line, so the next lines go the same way	private static String continuationPrefix(String first) {		if (first.startsWith("/a ") || first.startsWith("/A "))			return first.substring(0, 3);		if ((first.startsWith("/w ") || first.startsWith("/W ")) && (first.indexOf(' ', 3) != -1))			return first.substring(0, first.indexOf(' ', 3) + 1);		return "";	}	/**	 * Wait for client's next messages. Everything else that is waiting	 * comes along, so SocketReader can write them all at once.	 * 	 * @param batch - gets the messages, oldest first	 */	public void takeClientMessages(List<String> batch) throws InterruptedException {		batch.add(client_messages.take());		client_messages.drainTo(batch);	}	// SocketReader wrote some client's messages to the socket	public synchronized void clientMessagesSent(int n) {		sent += n;		notifyAll();	}	/**	 * Wait until everything queued so far is written to the socket	 * 	 * @param millis - longest wait	 * 	 * @return boolean - false if it timed out	 */	public synchronized boolean awaitSent(long millis) {		long deadline = System.currentTimeMillis() + millis;		try {			while (sent < queued) {				long left = deadline - System.currentTimeMillis();				if (left <= 0)					return false;				wait(left);			}		} catch (InterruptedException e) {			Thread.currentThread().interrupt();		}		return true;	}
 }
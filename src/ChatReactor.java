@@ -0,0 +1,381 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Selector based event loop for ChatServer.
+ *
+ * Each reactor owns one Selector and services many connections on its
+ * own thread, running the same command 0/3/4/7 protocol as the
+ * thread-per-connection server. A connection only costs CPU time when
+ * its socket has something to read or it has replies waiting to be written.
+ * With TLS on, reads and writes go through the connection's SSLEngine
+ * (see TlsTransport.Channel).
+ *
+ */
+public class ChatReactor implements Runnable {
+	private static final int BUFFER_SIZE = 4096;
+	private static final int MAX_GATHER = 64; // Most frames handed to one gathering write
+
+	private final Selector selector;
+	private final ConcurrentLinkedQueue<SocketChannel> new_channels; 	// Accepted, not registered yet
+	private final ConcurrentLinkedQueue<Session> want_write; 			// Sessions that got new replies to write
+	private final ArrayDeque<Session> lingering; 						// Waiting for more replies, oldest first
+	private final TlsTransport tls; 									// null if TLS is off
+	private Thread thread;
+
+	public ChatReactor(TlsTransport tls) throws IOException {
+		this.tls = tls;
+		this.selector = Selector.open();
+		this.new_channels = new ConcurrentLinkedQueue<SocketChannel>();
+		this.want_write = new ConcurrentLinkedQueue<Session>();
+		this.lingering = new ArrayDeque<Session>();
+	}
+
+	/**
+	 * Accept connections on the port and hand them to the reactors in turn.
+	 * This method does not return until the server socket fails.
+	 *
+	 * @param port - the port to listen to
+	 * @param threads - how many reactor threads to start
+	 * @param tls - TLS for every connection, or null
+	 */
+	public static void serve(int port, int threads, TlsTransport tls) throws IOException {
+		ChatReactor[] reactors = new ChatReactor[Math.max(1, threads)];
+
+		for (int i = 0; i < reactors.length; i++) {
+			reactors[i] = new ChatReactor(tls);
+			reactors[i].thread = new Thread(reactors[i], "chat-reactor-" + i);
+			reactors[i].thread.start();
+		}
+
+		ServerSocketChannel server = null;
+
+		try {
+			server = ServerSocketChannel.open();
+			server.bind(new InetSocketAddress(port));
+
+			int next = 0;
+			while (true) {
+				SocketChannel ch = server.accept(); // listen for connections
+				reactors[next].register(ch);
+				next = (next + 1) % reactors.length;
+			}
+		} catch (IOException ioe) {
+			System.err.println(ioe);
+		} finally {
+			if (server != null)
+				server.close();
+		}
+	}
+
+	// Hand a newly accepted channel to this reactor
+	public void register(SocketChannel ch) throws IOException {
+		ch.configureBlocking(false);
+		new_channels.add(ch);
+		selector.wakeup();
+	}
+
+	// This method runs in the reactor's thread
+	public void run() {
+		while (true) {
+			try {
+				if (lingering.isEmpty()) {
+					selector.select();
+				}
+				else { // Wake up in time for the first linger deadline
+					long nanos = lingering.peek().flush_at - System.nanoTime();
+					if (nanos > 0) { // Rounded up, less than a millisecond left must not spin on selectNow()
+						long millis = (nanos + 999_999) / 1_000_000;
+						selector.select(millis);
+					}
+					else {
+						selector.selectNow();
+					}
+				}
+			} catch (IOException ioe) {
+				System.err.println(ioe);
+				return;
+			}
+
+			registerNewChannels();
+
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+
+				Session s = (Session) key.attachment();
+				try {
+					if (key.isValid() && key.isReadable()) {
+						read(s);
+					}
+					if (key.isValid() && key.isWritable()) {
+						flush(s);
+					}
+				} catch (IOException | RuntimeException e) { // Bad client, only drop this one
+					close(s);
+				}
+			}
+
+			Session s;
+			while ((s = want_write.poll()) != null) {
+				s.write_requested.set(false);
+				if (!flushNow(s)) { // Give more replies a chance to join this write
+					if (!s.lingering) {
+						s.lingering = true;
+						s.flush_at = System.nanoTime() + ServerConfig.FLUSH_LINGER_NANOS;
+						lingering.add(s);
+					}
+					continue;
+				}
+				try {
+					flush(s);
+				} catch (IOException | RuntimeException e) {
+					close(s);
+				}
+			}
+
+			long now = System.nanoTime();
+			while (!lingering.isEmpty() && (lingering.peek().flush_at - now <= 0)) {
+				s = lingering.poll();
+				s.lingering = false;
+				try {
+					flush(s);
+				} catch (IOException | RuntimeException e) {
+					close(s);
+				}
+			}
+		}
+	}
+
+	// Whether a session's replies should be written without lingering
+	private boolean flushNow(Session s) {
+		OutboundQueue q = s.connection.outbound;
+
+		return (ServerConfig.FLUSH_LINGER_NANOS <= 0) || s.closing || q.isAborted() ||
+				(q.bytes() >= ServerConfig.FLUSH_BYTES);
+	}
+
+	/**
+	 * Ask the reactor to write what is in a connection's outbound queue.
+	 * This can be called from any thread, the write happens in the reactor's thread.
+	 *
+	 * @param c - a connection owned by this reactor
+	 */
+	void requestWrite(ChatServer.Connection c) {
+		Session s = (Session) c.key.attachment();
+
+		if (s.write_requested.getAndSet(true)) { // The reactor will get to it already
+			return;
+		}
+		want_write.add(s);
+
+		if (Thread.currentThread() != thread) {
+			selector.wakeup();
+		}
+	}
+
+	private void registerNewChannels() {
+		SocketChannel ch;
+
+		while ((ch = new_channels.poll()) != null) {
+			try {
+				SelectionKey key = ch.register(selector, SelectionKey.OP_READ);
+				ChatServer.Connection c = new ChatServer.Connection(ch, this);
+				c.key = key;
+				key.attach(new Session(c, key, (tls == null) ? null : tls.channel(ch, () -> requestWrite(c))));
+			} catch (IOException ioe) {
+				try {
+					ch.close();
+				} catch (IOException e) {}
+			}
+		}
+	}
+
+	// Read what the client sent and run every complete line through the protocol
+	private void read(Session s) throws IOException {
+		if (s.tls == null) {
+			handleInput(s, s.connection.channel.read(s.in));
+			return;
+		}
+
+		handleInput(s, s.tls.read(s.in));
+		while (s.key.isValid() && !s.closing && s.tls.pending()) { // More than fit in s.in
+			handleInput(s, s.tls.unwrap(s.in));
+		}
+		flush(s); // The handshake may have moved on, replies may have waited for it
+	}
+
+	// Run the complete lines in s.in through the protocol, n is what the last read got
+	private void handleInput(Session s, int n) throws IOException {
+		if (n == -1) { // Client closed the socket
+			close(s);
+			return;
+		}
+
+		s.in.flip();
+		s.decoder.decode(s.in, s.chars, false);
+		s.in.compact();
+		s.chars.flip();
+
+		while (s.chars.hasRemaining() && !s.closing) {
+			char ch = s.chars.get();
+
+			// Same line terminators as BufferedReader.readLine(): \n, \r or \r\n
+			if (s.skip_lf) {
+				s.skip_lf = false;
+				if (ch == '\n') {
+					continue;
+				}
+			}
+			if ((ch == '\n') || (ch == '\r')) {
+				s.skip_lf = (ch == '\r');
+				String line = s.line.toString();
+				s.line.setLength(0);
+
+				s.connection.handleLine(line);
+				if (!s.connection.running) { // Disconnect request or user name in use
+					s.closing = true;
+				}
+			}
+			else if (s.line.length() < ChatRoomRules.LINE_LENGTH) {
+				s.line.append(ch);
+			}
+			else { // Not a chat client, it would make the line grow without end
+				System.err.println("Disconnecting client with a line over " + ChatRoomRules.LINE_LENGTH + " characters");
+				close(s);
+				return;
+			}
+		}
+		s.chars.clear();
+
+		if (s.closing) {
+			flush(s);
+		}
+	}
+
+	// Write as much of the queued replies as the socket takes without blocking
+	private void flush(Session s) throws IOException {
+		if (!s.key.isValid()) {
+			return;
+		}
+		if (s.connection.outbound.isAborted()) { // Slow client, drop it without writing the rest
+			close(s);
+			return;
+		}
+		if (s.tls != null) {
+			if (s.tls.pending()) { // A handshake task is done, go on with what the client sent meanwhile
+				handleInput(s, s.tls.unwrap(s.in));
+				if (!s.key.isValid()) {
+					return;
+				}
+			}
+			if (!s.tls.handshake()) { // Replies wait for the handshake
+				s.key.interestOps(s.tls.hasOutput() ? (SelectionKey.OP_READ | SelectionKey.OP_WRITE) : SelectionKey.OP_READ);
+				return;
+			}
+		}
+
+		boolean done = false;
+		while (true) {
+			// Move what is left of the last write to the front and top up from the queue
+			int left = s.batch_end - s.batch_start;
+			System.arraycopy(s.batch, s.batch_start, s.batch, 0, left);
+			Arrays.fill(s.batch, left, s.batch_end, null);
+			s.batch_start = 0;
+			s.batch_end = left;
+
+			while (s.batch_end < s.batch.length) {
+				Frame next = s.connection.outbound.poll();
+				if (next == null) {
+					break;
+				}
+				s.batch[s.batch_end++] = s.connection.forWire(next).buffer(); // Shared bytes, own position
+			}
+			if (s.batch_end == 0) {
+				done = true;
+				break;
+			}
+
+			long bytes = (s.tls == null) ? s.connection.channel.write(s.batch, 0, s.batch_end) // One gathering write for many frames
+					: s.tls.write(s.batch, 0, s.batch_end);
+			while ((s.batch_start < s.batch_end) && !s.batch[s.batch_start].hasRemaining()) {
+				s.batch_start++;
+			}
+			s.connection.outbound.recordFlush(s.batch_start, bytes);
+			if (s.batch_start < s.batch_end) { // Socket buffer is full
+				break;
+			}
+		}
+
+		if (done && (s.tls != null) && s.tls.hasOutput()) { // Encrypted, not written yet
+			done = false;
+		}
+
+		if (done && s.closing) { // Last reply is out, now hang up
+			close(s);
+		}
+		else if (done) {
+			s.key.interestOps(SelectionKey.OP_READ);
+		}
+		else {
+			s.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+	}
+
+	private void close(Session s) {
+		if (s.tls != null) {
+			s.tls.close();
+		}
+		s.key.cancel();
+		s.connection.closeConnection();
+	}
+
+	/**
+	 * State the reactor keeps for every connection
+	 */
+	private static class Session {
+		final ChatServer.Connection connection;
+		final SelectionKey key;
+		final TlsTransport.Channel tls; 	// null without TLS
+
+		final ByteBuffer in; 				// Plain bytes from the client
+		final CharBuffer chars;
+		final CharsetDecoder decoder = Frame.CHARSET.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		final StringBuilder line = new StringBuilder(); 	// Line read so far
+		boolean skip_lf = false; 							// Last line ended with \r
+
+		final ByteBuffer[] batch = new ByteBuffer[MAX_GATHER]; 				// Frames being written
+		int batch_start = 0;
+		int batch_end = 0;
+		final AtomicBoolean write_requested = new AtomicBoolean(false);
+		boolean closing = false;
+		boolean lingering = false;
+		long flush_at; 			// System.nanoTime() to write lingering replies at
+
+		Session(ChatServer.Connection c, SelectionKey k, TlsTransport.Channel tls) {
+			this.connection = c;
+			this.key = k;
+			this.tls = tls;
+
+			int size = BUFFER_SIZE + ((tls == null) ? 0 : tls.applicationBufferSize()); // A whole TLS record must fit
+			this.in = ByteBuffer.allocate(size);
+			this.chars = CharBuffer.allocate(size);
+		}
+	}
+}
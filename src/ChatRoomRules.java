@@ -8,4 +8,6 @@
 public class ChatRoomRules {
 	public final static int USERNAME_LENGTH = 16;
 	public final static int MESSAGE_LENGTH = 512;
+	public final static int ROOM_NAME_LENGTH = 16;
+	public final static int LINE_LENGTH = 8192; // Longest line a client may send, far more than any command needs
 }
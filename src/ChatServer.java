@@ -11,26 +11,79 @@
  *
  * Each client is serviced in a separate thread.
  *
+ * Start with "nio" as the first argument to service all clients
+ * on a few selector threads instead (see ChatReactor).
+ *
+ * Start with "virtual" as the first argument to service each client
+ * on a virtual thread instead of a pooled one.
+ *
+ * The port can be given as the second argument.
+ *
+ * Several servers can share their users as one chat room, see ClusterNode.
+ * Clients that log in with +binary get compact binary frames, see BinaryCodec,
+ * and with +deflate compressed ones, see DeflateCodec.
+ * TLS is turned on with -Dchat.tls.keystore, see TlsTransport.
+ *
  */
 
 import java.net.*;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
 import java.io.*;
-import java.sql.Date;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.TimeZone;
+import java.util.List;
 import java.util.concurrent.*;
+import javax.net.ssl.SSLSocket;
 
 public class ChatServer {
 	private static final int PORT = 1337;
-	private static final Executor exec = Executors.newCachedThreadPool();
-	private static ArrayList<Connection> allSockets = new ArrayList<Connection>();
+	private static Executor exec = Executors.newCachedThreadPool();
+	private static final int IDLE_CHECK_MILLIS = 30_000; // How often a connection that waits for its client checks it was stopped
+	private static final int HISTORY_PAGE = 1024; // Log records read at a time when looking back for older history
+	private static final UserRegistry users = new UserRegistry(); // All logged in connections
+	private static final RoomRegistry rooms = new RoomRegistry(); // Who gets whose general messages
+	// Held while a user joins or leaves and the change is handed to the
+	// announcer, so every client gets the roster changes in version order
+	private static final Object roster_lock = new Object();
+	// Sends the roster changes to everyone, one after the other, so no login waits for the fan-out
+	private static final ExecutorService announcer = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "chat-announcer");
+		t.setDaemon(true);
+		return t;
+	});
+	private static MessageLog log; // Every delivered message, null if logging is off
+	private static InboxStore inbox; // Private messages for offline users, null if turned off
+	// Inbox reads and writes and reads of older history, one at a time in the order they were asked for, off the threads that serve clients
+	private static final ExecutorService disk = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "chat-disk");
+		t.setDaemon(true);
+		return t;
+	});
+	private static ClusterNode cluster; // The other servers of the cluster, null if there are none
 
 	public static void main(String[] args) throws IOException {
+		String mode = (args.length > 0) ? args[0] : "threads";
+		int port = (args.length > 1) ? Integer.parseInt(args[1]) : PORT;
+		
+		log = MessageLog.open();
+		rooms.setLog(log);
+		inbox = InboxStore.open();
+		cluster = ClusterNode.start();
+		TlsTransport tls = TlsTransport.open();
+		ServerMetrics.start(users, rooms, log, inbox, cluster, tls);
+		
+		if (mode.equalsIgnoreCase("nio")) {
+			ChatReactor.serve(port, Runtime.getRuntime().availableProcessors(), tls); // one selector thread per core
+			return;
+		}
+		if (mode.equalsIgnoreCase("virtual")) {
+			exec = virtualThreadExecutor();
+		}
+		
 		ServerSocket sock = null;
 		
 		try {
-			sock = new ServerSocket(PORT); // create a server socket listening to port 1337
+			sock = (tls == null) ? new ServerSocket(port) : tls.serverSocket(port); // create a server socket listening to port 1337
 			
 			while (true) {
 				Runnable task = new Connection(sock.accept()); //listen for connections
@@ -44,20 +97,149 @@ public class ChatServer {
 		}
 	}
 	
+	/**
+	 * A user logged in on another node of the cluster. It goes on the list
+	 * of users like a local one, everyone here is told. If the name is
+	 * already taken here, the user that came first keeps it.
+	 * 
+	 * @param username - the user
+	 * @param node - the node it is on
+	 */
+	static void remoteJoined(String username, String node) {
+		synchronized (roster_lock) {
+			Connection remote = new Connection(username, node);
+			if (users.claim(username, remote)) {
+				remote.announce(remote.command10(), remote.command12('+'));
+			}
+		}
+	}
+	
+	// A user left another node of the cluster
+	static void remoteLeft(String username, String node) {
+		Connection remote = users.get(username);
+		if ((remote != null) && node.equals(remote.node)) {
+			remote.leave();
+		}
+	}
+	
+	// The link to another node of the cluster dropped, all its users are gone
+	static void remoteNodeLeft(String node) {
+		for (Connection c: users.snapshot()) {
+			if (node.equals(c.node)) {
+				c.leave();
+			}
+		}
+	}
+	
+	// A general message from another node of the cluster, for whoever is in the room here
+	static void remoteBroadcast(String name, String message) {
+		Room to = rooms.get(name);
+		if (to == null) { // No one is in it here
+			return;
+		}
+		
+		Frame frame = Frame.of(message);
+		Connection[] members = to.record(frame);
+		for (Connection c: members) {
+			c.writeToClient(frame);
+		}
+		to.recordBroadcast(members.length, frame.length());
+		if (log != null) {
+			log.append(to.name(), frame);
+		}
+	}
+	
+	// A private message from another node of the cluster, for a user here
+	static void remoteWhisper(String username, String message) {
+		Frame whisper = Frame.of(message);
+		
+		Connection to = users.get(username);
+		if ((to == null) && (inbox != null)) { // Same as a local whisper, kept if the user just left
+			synchronized (roster_lock) {
+				to = users.get(username);
+				if (to == null) {
+					disk.execute(() -> {
+						try {
+							inbox.store(username, whisper);
+						} catch (IOException ioe) {
+							System.err.println("Could not keep a message for " + username + ": " + ioe);
+						}
+					});
+					return;
+				}
+			}
+		}
+		
+		if ((to != null) && (to.node == null)) {
+			to.writeToClient(whisper);
+			if (log != null) {
+				log.append("@" + username, whisper);
+			}
+		}
+	}
+	
+	// Users logged in on this node, what the other nodes get when their link to it opens
+	static List<String> localUsers() {
+		List<String> names = new ArrayList<String>();
+		
+		for (Connection c: users.snapshot()) {
+			if (c.node == null) {
+				names.add(c.username);
+			}
+		}
+		return names;
+	}
+	
+	/**
+	 * One virtual thread per task when the JVM has them (Java 21+).
+	 * Older JVMs fall back to the cached pool, still with blocking reads.
+	 * 
+	 * @return Executor - the executor to run connections on
+	 */
+	private static Executor virtualThreadExecutor() {
+		try {
+			return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			System.err.println("Virtual threads are not available on this JVM, using platform threads");
+			return Executors.newCachedThreadPool();
+		}
+	}
+	
 	public static class Connection implements Runnable {
 		String username;
 		boolean running;
 		
 		Socket client;
 		BufferedReader from_client; 	// Read from client
-		PrintWriter to_client; 			// Write to client
-			
+		char[] in_chars = new char[256]; // What was read from client and not made into a line yet
+		int in_pos, in_end;
+		StringBuilder line_in = new StringBuilder(); // The line being read, kept when a read times out
+		boolean skip_lf;				// Last line ended with \r, a \n right after it is part of that
+		OutputStream to_client; 		// Write to client
+		
+		SocketChannel channel;			// Set instead of the streams when serviced by a ChatReactor
+		ChatReactor reactor;
+		SelectionKey key;				// Registration of channel with the reactor's selector
+		
+		OutboundQueue outbound;			// Replies waiting to be written to client
+		
+		CommandParser parser = new CommandParser(); 		// Reused for every line from client
+		StringBuilder reply_builder = new StringBuilder(); 	// Reused for every reply
+		
 		boolean logged_in;
+		boolean roster_sync;			// Client asked for the roster as a versioned snapshot and deltas
+		boolean binary;					// Client asked for binary frames from the server (see BinaryCodec)
+		BinaryCodec.Ids binary_ids;		// Set by the writer once it got to BinaryCodec.SWITCH
+		boolean deflate;				// Client asked for compressed frames (see DeflateCodec)
+		boolean deflating;				// Set by the writer once it got to DeflateCodec.SWITCH
+		Room room;						// Where general messages go to, set once logged in
+		String node;					// Set for a user logged in on another node of the cluster, there is no socket
 		String server_reply;
 		
 		public Connection(Socket s) {
 			this.client = s;
 			openCommunication(s);
+			this.outbound = new OutboundQueue();
 			
 			running = true;
 			
@@ -67,94 +249,489 @@ public class ChatServer {
 			this.username = null;
 		}
 		
+		public Connection(SocketChannel ch, ChatReactor r) {
+			this.client = ch.socket();
+			this.channel = ch;
+			this.reactor = r;
+			this.outbound = new OutboundQueue();
+			
+			running = true;
+			
+			this.logged_in = false;
+			this.server_reply = null;
+			
+			this.username = null;
+		}
+		
+		// A user of another node of the cluster, what it gets goes through ChatServer.cluster
+		Connection(String username, String node) {
+			this.username = username;
+			this.node = node;
+			this.outbound = new OutboundQueue();
+			this.logged_in = true;
+		}
+		
 		// This method runs in a separate thread
 		public void run() {
 			String line = null; 	// Client's input
 			
+			ChatServer.exec.execute(new Runnable() { // Replies are written by a thread of their own
+				public void run() {
+					writeLoop();
+				}
+			});
+			
 			try {				
-				while (!logged_in) { // Client is not logged in
-					if (from_client.ready()) {
-						line = from_client.readLine();
+				// Park this thread until the client sends something, null means it hung up
+				while (running && ((line = this.readLine()) != null)) {
+					handleLine(line);
+				}
+			} catch (IOException ioe) {} 
+			finally { //close all the streams
+				closeConnection();
+			}
+		}
+		
+		/**
+		 * Next line from client, ended by \n, \r or \r\n like
+		 * BufferedReader.readLine(), but no longer than
+		 * ChatRoomRules.LINE_LENGTH, the same as ChatReactor allows.
+		 * A read that times out keeps the half line and waits again,
+		 * unless this connection was stopped in the meantime.
+		 * 
+		 * @return String - the line, or null if the client hung up
+		 * @throws IOException if the line is too long or the socket failed
+		 */
+		private String readLine() throws IOException {
+			while (true) {
+				if (in_pos == in_end) {
+					int n;
+					try {
+						n = from_client.read(in_chars, 0, in_chars.length);
+					} catch (SocketTimeoutException e) { // Still there, nothing to read yet
+						if (!running) {
+							return null;
+						}
+						continue;
+					}
+					if (n == -1) { // Client closed its side, what it sent last still counts
+						if (line_in.length() == 0) {
+							return null;
+						}
+						String line = line_in.toString();
+						line_in.setLength(0);
+						return line;
+					}
+					in_pos = 0;
+					in_end = n;
+				}
+				
+				char ch = in_chars[in_pos++];
+				if (skip_lf) {
+					skip_lf = false;
+					if (ch == '\n') {
+						continue;
+					}
+				}
+				if ((ch == '\n') || (ch == '\r')) {
+					skip_lf = (ch == '\r');
+					String line = line_in.toString();
+					line_in.setLength(0);
+					return line;
+				}
+				if (line_in.length() == ChatRoomRules.LINE_LENGTH) { // Not a chat client, it would make the line grow without end
+					System.err.println("Disconnecting client with a line over " + ChatRoomRules.LINE_LENGTH + " characters");
+					throw new IOException("Line too long");
+				}
+				line_in.append(ch);
+			}
+		}
+		
+		/**
+		 * Handle one line that the client sent.
+		 * 
+		 * Before the client is logged in, only command 0 is accepted.
+		 * After that, command 3, 4, 7, 11, 13, 14, 15 and 22 are serviced.
+		 * When this returns with running set to false, the connection
+		 * should be closed once the last reply is written.
+		 * 
+		 * @param line - client's input without the line terminator
+		 */
+		void handleLine(String line) {
+			if (line == null) {
+				return;
+			}
+			
+			if (!logged_in) { // Client is not logged in
+				boolean welcomed = false;
+				
+				synchronized (roster_lock) {
+					if (isLoggedIn(line)){
+						if (running == false) { // User name is already in user
+							writeToClient(this.command2());
+							return;
+						}
+						if (binary) { // What comes after this line is binary
+							this.writeToClient(BinaryCodec.SWITCH);
+						}
+						if (deflate) { // What comes after this line is compressed
+							this.writeToClient(DeflateCodec.SWITCH);
+						}
+						// isLoggedIn() already put this connection on the list of users, last
+						Connection[] all = ChatServer.users.snapshot();
 						
-						if (line != null) {
-							if (isLoggedIn(line)){
-								if (running == false) { // User name is already in user
-									writeToClient(this.command2());
-									return;
-								}
-								synchronized (ChatServer.allSockets) { // Make sure only one thread can modify list of users	
-									this.writeToAll(this.command10()); // Announces new connection to everyone
-									
-									ChatServer.allSockets.add(this); // Add new connection to list of all connection
-									server_reply = this.command1(); // Acceptance for user name
-									this.writeToClient(server_reply);
-								}
-							}
-							else {
-								server_reply = "Please log in!";
-								this.writeToClient(server_reply);
-							}
+						this.announce(this.command10(), this.command12('+')); // Announces new connection to everyone
+						
+						if (roster_sync) { // The user list comes as command 11, in pieces
+							this.writeToClient(Frame.control(this.command1(new Connection[0])));
+							this.sendRoster(all, ChatServer.users.version());
+						}
+						else {
+							server_reply = this.command1(all); // Acceptance for user name
+							this.writeToClient(Frame.control(server_reply));
+						}
+						
+						this.room = ChatServer.rooms.join(RoomRegistry.LOBBY, this); // Everyone starts in the lobby, after the welcome comes its history
+						if (ChatServer.cluster != null) {
+							ChatServer.cluster.userJoined(this.username);
 						}
+						welcomed = true;
+					}
+					else {
+						server_reply = "Please log in!";
+						this.writeToClient(server_reply);
 					}
 				}
-					
-				// Get to here means client is logged in
-				while (running) {
-					if (from_client.ready()) {
-						line = from_client.readLine();
+				if (welcomed) {
+					this.deliverInbox();
+				}
+				return;
+			}
+			
+			// Get to here means client is logged in
+			if (line.length() >= 2) {
+				switch (CommandParser.commandOf(line)) {
+					case 3: // General message to everyone in the room
+						server_reply = this.command5(line);
+						writeToRoom(server_reply);
+						break;
+					case 4: // Send a private message from client to client
+						String[] temp = this.command6(line);
+						if (temp == null) { // Not enough fields, nothing to send
+							this.writeToClient("Private message needs a user and a message");
+							break;
+						}
+						server_reply = temp[1]; // The private message
+						
+						Connection to = ChatServer.users.get(temp[0]); // The client that the message will go to
+						Frame whisper = Frame.of(server_reply);
 						
-						if ((line != null) && (line.length() >= 2)) {
-							if (Character.isDigit(line.charAt(0)) && (line.charAt(1) == ' ')) {
-								switch (line.charAt(0)) {
-									case '3': // General message to all clients
-										server_reply = this.command5(line);
-										writeToAll(server_reply);
-										break;
-									case '4': // Send a private message from client to client
-										String[] temp = this.command6(line);
-										server_reply = temp[1]; // The private message
-										
-										for (Connection c: ChatServer.allSockets) {
-											// Find the client that the message will go to
-											if (c.username.equals(temp[0])) {
-												c.writeToClient(server_reply);
-											}
-										}
-										
-										this.writeToClient("Private message sent!"); // Notify this client
-										break;
-									case '7': // Client disconnects
-										running = false; // This will stop this thread
-										
-										server_reply = this.command8(); // Says Goodbye! to disconnect request
-										this.writeToClient(server_reply); 
-										
-										ChatServer.allSockets.remove(this);
-										
-										server_reply = this.command9(); // Announce a disconnection
-										this.writeToAll(server_reply);
-										
-										break;
+						if ((to == null) && (ChatServer.inbox != null)) { // Offline, keep it for the next login
+							synchronized (roster_lock) { // Queued before a login of the user can queue taking its inbox
+								to = ChatServer.users.get(temp[0]);
+								if (to == null) {
+									this.storeWhisper(temp[0], whisper);
+									break;
 								}
-								
 							}
 						}
+						
+						if ((to != null) && (to.node != null)) { // On another node, that node logs it
+							if (ChatServer.cluster.whisper(to.node, to.username, server_reply)) {
+								this.writeToClient("Private message sent!");
+							}
+							else { // The link to that node is too far behind
+								this.writeToClient("Could not reach " + to.username + ", the message was not sent");
+							}
+						}
+						else if (to != null) {
+							to.writeToClient(whisper);
+							if (ChatServer.log != null) {
+								ChatServer.log.append("@" + to.username, whisper);
+							}
+							this.writeToClient("Private message sent!"); // Notify this client
+						}
+						else {
+							this.writeToClient("No such user: " + temp[0]);
+						}
+						break;
+					case 7: // Client disconnects
+						running = false; // This will stop this connection
+						
+						server_reply = this.command8(); // Says Goodbye! to disconnect request
+						this.writeToClient(server_reply); 
+						
+						this.leave(); // Announce a disconnection
+						
+						break;
+					case 11: // Client lost track of the roster and wants it again
+						synchronized (roster_lock) { // After the changes already on their way to this client
+							Connection[] all = ChatServer.users.snapshot();
+							long version = ChatServer.users.version();
+							ChatServer.announcer.execute(() -> this.sendRoster(all, version));
+						}
+						break;
+					case 13: // Client goes to another room
+						String name = CommandParser.cleanUsername(line, 3, ChatRoomRules.ROOM_NAME_LENGTH);
+						if (name.isEmpty()) {
+							this.writeToClient("Please give a room name!");
+							break;
+						}
+						this.changeRoom(name);
+						break;
+					case 14: // Client leaves its room, back to the lobby
+						this.changeRoom(RoomRegistry.LOBBY);
+						break;
+					case 15: // Client wants the list of rooms, as <18><" "><more><" "><room:members,...>
+						this.sendInPieces("18 ", ChatServer.rooms.list());
+						break;
+					case 22: // Client wants older messages of its room, as <22><" "><skip><" "><count>
+						int skip = -1, count = -1;
+						if (parser.parse(line, 3) == 3) {
+							try {
+								skip = Integer.parseInt(parser.field(1));
+								count = Math.min(Integer.parseInt(parser.field(2)), ServerConfig.HISTORY_SIZE);
+							} catch (NumberFormatException e) {}
+						}
+						if ((skip < 0) || (count < 0)) {
+							this.writeToClient("Older history needs how many messages to skip and how many to send");
+							break;
+						}
+						this.sendOlderHistory(skip, count);
+						break;
+				}
+			}
+		}
+		
+		// Keep a whisper in the inbox of an offline user, on the disk thread. The sender is told how it went.
+		private void storeWhisper(String to, Frame whisper) {
+			ChatServer.disk.execute(() -> {
+				try {
+					if (ChatServer.inbox.store(to, whisper)) {
+						this.writeToClient(to + " is offline, the message will be delivered at the next login");
 					}
-				}				 
-			} catch (IOException ioe) {} 
-			finally { //close all the streams
-				if (from_client != null)
-					try {
-						from_client.close();
-					} catch (IOException e) {
-						e.printStackTrace();
+					else {
+						this.writeToClient("No such user: " + to);
 					}
-				if (to_client != null)
-					to_client.close();
+				} catch (IOException ioe) {
+					System.err.println("Could not keep a message for " + to + ": " + ioe);
+					this.writeToClient("Could not keep the message for " + to + ", it was not sent");
+				}
+			});
+		}
+		
+		/**
+		 * General messages of this connection's room from before the ones it
+		 * got, read back from the message log on the disk thread. They are
+		 * looked for in the last ServerConfig.HISTORY_SCAN records of the log,
+		 * none are found if the log is off.
+		 * This is command 23 - <23><" "><room><" "><n></r/n>, then the n
+		 * messages as command 5, oldest first, all in one write.
+		 * 
+		 * @param skip - how many of the room's newest messages the client already has
+		 * @param count - most messages to send
+		 */
+		private void sendOlderHistory(int skip, int count) {
+			String name = this.room.name();
+			
+			if ((ChatServer.log == null) || (count == 0)) {
+				this.writeToClient("23 " + name + " 0");
+				return;
+			}
+			
+			ChatServer.disk.execute(() -> {
+				List<Frame> older = new ArrayList<Frame>(count + 1); // Newest first
+				int skipped = 0;
+				long end = ChatServer.log.nextOffset();
+				long stop = Math.max(0, end - ServerConfig.HISTORY_SCAN);
+				
+				while ((end > stop) && (older.size() < count)) { // One page at a time, going back
+					long from = Math.max(stop, end - HISTORY_PAGE);
+					List<MessageLog.Record> page = ChatServer.log.read(from, (int) (end - from));
+					for (int i = page.size() - 1; (i >= 0) && (older.size() < count); i--) {
+						MessageLog.Record r = page.get(i);
+						if ((r.offset >= end) || !r.room.equals(name)) {
+							continue;
+						}
+						if (skipped < skip) {
+							skipped++;
+						}
+						else {
+							older.add(Frame.wrap(r.line));
+						}
+					}
+					end = from;
+				}
+				
+				older.add(Frame.of("23 " + name + " " + older.size()));
+				Frame[] frames = new Frame[older.size()];
+				for (int i = 0; i < frames.length; i++) {
+					frames[i] = older.get(frames.length - 1 - i);
+				}
+				this.writeToClient(Frame.join(frames));
+			});
+		}
+		
+		// Remember the user name and send, in one write, what waited for it while it was offline.
+		// Runs on the disk thread, after any whisper that was stored before the login.
+		private void deliverInbox() {
+			if (ChatServer.inbox == null) {
+				return;
+			}
+			
+			ChatServer.disk.execute(() -> {
+				try {
+					ChatServer.inbox.remember(this.username);
+					Frame waiting = ChatServer.inbox.take(this.username);
+					if (waiting != null) {
+						this.writeToClient(waiting);
+					}
+				} catch (IOException ioe) {
+					System.err.println("Could not deliver the inbox of " + this.username + ": " + ioe);
+				}
+			});
+		}
+		
+		// Take this connection off the list and tell everyone, once
+		private void leave() {
+			synchronized (roster_lock) {
+				if (!ChatServer.users.release(this.username, this)) {
+					return;
+				}
+				this.announce(this.command9(), this.command12('-'));
+				if ((this.node == null) && (ChatServer.cluster != null)) {
+					ChatServer.cluster.userLeft(this.username);
+				}
+			}
+			this.leaveRoom();
+		}
+		
+		/**
+		 * Move to a room and tell the client with command 16, before the
+		 * room's history. The members of the room left and of the room
+		 * joined get command 17.
+		 * 
+		 * @param name - the room to go to
+		 */
+		private void changeRoom(String name) {
+			if (name.equals(room.name())) {
+				this.writeToClient(this.command16(name, room.size()));
+				return;
+			}
+			
+			this.leaveRoom();
+			Room next = ChatServer.rooms.get(name);
+			this.writeToClient(this.command16(name, (next == null) ? 1 : next.size() + 1)); // Counting this user
+			room = ChatServer.rooms.join(name, this);
+			this.announceRoom('+');
+		}
+		
+		private void leaveRoom() {
+			if (room != null) {
+				ChatServer.rooms.leave(room, this);
+				this.announceRoom('-');
+			}
+		}
+		
+		// Tell the others in the room that this user came or went, not done for the lobby
+		private void announceRoom(char change) {
+			if (room.name().equals(RoomRegistry.LOBBY)) { // Everyone gets command 10 and 9 for that
+				return;
+			}
+			
+			Connection[] members = room.members();
+			Frame frame = Frame.of(this.command17(change));
+			for (Connection c: members) {
+				if (c != this) {
+					c.writeToClient(frame);
+				}
+			}
+		}
+		
+		/**
+		 * Tell everyone else that a user joined or left. Each form is
+		 * encoded once: command 9 or 10 for clients that keep their own list,
+		 * command 12 for clients that sync a versioned roster.
+		 * Called with roster_lock held: the users are taken as they are now,
+		 * the announcer writes to them once the lock is released.
+		 * 
+		 * @param legacy - command 9 or 10
+		 * @param delta - the same change as command 12
+		 */
+		private void announce(String legacy, String delta) {
+			Connection[] all = ChatServer.users.snapshot();
+			
+			ChatServer.announcer.execute(() -> {
+				Frame legacy_frame = Frame.of(legacy);
+				Frame delta_frame = Frame.of(delta);
 				
-				if (ChatServer.allSockets.contains(this)) {
-					ChatServer.allSockets.remove(this); // Remove disconnected client off the list
+				for (Connection c: all) {
+					if ((c != this) && (c.node == null)) { // Every node tells its own users
+						c.writeToClient(c.roster_sync ? delta_frame : legacy_frame);
+					}
 				}
+			});
+		}
+		
+		/**
+		 * Send everyone online as command 11 lines, none longer than
+		 * ChatRoomRules.MESSAGE_LENGTH. The users and the version are taken
+		 * together under roster_lock, every later change comes after them.
+		 * <11><" "><version><" "><more><" "><user1,user2,...></r/n>
+		 * more is 1 on every line but the last one.
+		 * 
+		 * @param all - the users
+		 * @param version - the roster version they are
+		 */
+		private void sendRoster(Connection[] all, long version) {
+			List<String> names = new ArrayList<String>(all.length);
+			
+			for (Connection c: all) {
+				names.add(c.username);
+			}
+			this.sendInPieces("11 " + version + " ", names);
+		}
+		
+		/**
+		 * Send a comma separated list in lines no longer than ChatRoomRules.MESSAGE_LENGTH
+		 * <prefix><more><" "><item1,item2,...></r/n>
+		 * more is 1 on every line but the last one.
+		 * 
+		 * @param prefix - the command and the fields before more
+		 * @param items - what goes on the list
+		 */
+		private void sendInPieces(String prefix, List<String> items) {
+			int space = ChatRoomRules.MESSAGE_LENGTH - prefix.length() - 2; // 2 for <more><" ">
+			StringBuilder line = new StringBuilder();
+			
+			for (String item: items) {
+				if ((line.length() > 0) && (line.length() + 1 + item.length() > space)) {
+					this.writeToClient(Frame.control(prefix + "1 " + line)); // A lost piece would leave the list short
+					line.setLength(0);
+				}
+				if (line.length() > 0) {
+					line.append(',');
+				}
+				line.append(item);
+			}
+			this.writeToClient(Frame.control(prefix + "0 " + line));
+		}
+		
+		// Stop this connection and take it off the list
+		void closeConnection() {
+			running = false;
+			outbound.close(); // The writer hangs up after the last reply
+			
+			if (channel != null) { // The reactor already wrote the last reply
+				try {
+					channel.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			
+			if (logged_in) {
+				this.leave(); // Remove disconnected client off the list, unless command 7 already did
 			}
 		}
 		
@@ -162,22 +739,116 @@ public class ChatServer {
 		private void openCommunication(Socket client) {
 			try {
 				from_client = new BufferedReader(new InputStreamReader(client.getInputStream()));	//read input from client
-				to_client = new PrintWriter(client.getOutputStream());	//write to output to client
+				if (!(client instanceof SSLSocket)) { // A TLS record cut off by a timeout cannot be read on
+					client.setSoTimeout(IDLE_CHECK_MILLIS);
+				}
+				to_client = new BufferedOutputStream(client.getOutputStream(), ServerConfig.FLUSH_BYTES);	//write to output to client
 			} catch (IOException e) {}
 		}
 		
-		// Write to client's socket
+		// Close all the streams, this also closes the socket
+		private void closeSocket() {
+			if (from_client != null)
+				try {
+					from_client.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			if (to_client != null)
+				try {
+					to_client.close();
+				} catch (IOException e) {}
+		}
+		
+		// Write queued replies to client's socket, this runs in a separate thread
+		private void writeLoop() {
+			Frame message;
+			
+			try {
+				while ((message = outbound.take()) != null) {
+					// Coalesce whatever else comes in within the linger time into one flush
+					long deadline = System.nanoTime() + ServerConfig.FLUSH_LINGER_NANOS;
+					int frames = 0;
+					long bytes = 0;
+					
+					do {
+						message = this.forWire(message);
+						to_client.write(message.bytes()); // Already encoded, shared with other recipients
+						frames++;
+						bytes += message.length();
+					} while ((bytes < ServerConfig.FLUSH_BYTES) && ((message = outbound.poll(deadline)) != null));
+					
+					to_client.flush();
+					outbound.recordFlush(frames, bytes);
+				}
+			} catch (IOException | InterruptedException e) {} // Client is gone
+			finally {
+				outbound.abort();
+				closeSocket(); // Also wakes the reading thread up if it is still waiting
+			}
+		}
+		
+		/**
+		 * What a queued frame goes out as: the frame itself for text clients,
+		 * its binary form once the client got BinaryCodec.SWITCH, compressed
+		 * once it got DeflateCodec.SWITCH. Only called by the thread that
+		 * writes to client.
+		 * 
+		 * @param message - the frame from the outbound queue
+		 * 
+		 * @return Frame - the bytes to write
+		 */
+		Frame forWire(Frame message) {
+			if (message == BinaryCodec.SWITCH) {
+				binary_ids = new BinaryCodec.Ids();
+				return message;
+			}
+			
+			Frame wire = (binary_ids == null) ? message : binary_ids.encode(message);
+			if (message == DeflateCodec.SWITCH) { // The line itself is not compressed
+				deflating = true;
+				return wire;
+			}
+			return deflating ? wire.deflated() : wire;
+		}
+		
+		// Queue a reply for client, never blocks
 		private void writeToClient(String message) {
-			to_client.println(message);
-			to_client.flush();
+			writeToClient(Frame.of(message));
 		}
 		
-		// Write to all sockets
-		private void writeToAll(String message) {
-			ArrayList<Connection> all = ChatServer.allSockets;
+		// Queue an encoded reply for client, never blocks
+		void writeToClient(Frame message) {
+			if (node != null) { // Its own node sends what it gets
+				return;
+			}
+			if (!outbound.offer(message)) { // Client fell too far behind
+				System.err.println("Disconnecting slow client " + this.username + " " + outbound);
+				if (channel == null) {
+					closeSocket(); // The writer may be stuck on a full socket
+				}
+			}
 			
-			for (Connection c: all) {
-				c.writeToClient(message);
+			if (channel != null) { // The reactor owns the socket and writes for us
+				reactor.requestWrite(this);
+			}
+		}
+		
+		// Write to every socket in this connection's room
+		private void writeToRoom(String message) {
+			Room to = this.room;
+			Frame frame = Frame.of(message); // Encode once, every recipient shares the bytes
+			Connection[] members = to.record(frame); // Kept for the history of the room
+			
+			for (Connection c: members) {
+				c.writeToClient(frame);
+			}
+			to.recordBroadcast(members.length, frame.length());
+			if (ChatServer.log != null) {
+				ChatServer.log.append(to.name(), frame);
+			}
+			if (ChatServer.cluster != null) { // The same room on the other nodes
+				ChatServer.cluster.broadcast(to.name(), message);
 			}
 		}
 		
@@ -187,21 +858,21 @@ public class ChatServer {
 			
 			if ((command != null) && (command.length() > min_length)){
 				if ((command.charAt(0) == '0') && (command.charAt(1) == ' ')) {
-					logged_in = true;
-					this.username = (command.substring(2)).toLowerCase(); // User name is ignored-case
-					// User name can only contains word characters
-					// \W means anything other than letters, numbers, and underscores
-					this.username = this.username.replaceAll("\\W", "");
-
-					// User name has minimum length
-					if (this.username.length() > ChatRoomRules.USERNAME_LENGTH) {
-						this.username = this.username.substring(0, ChatRoomRules.USERNAME_LENGTH);
+					// User name is ignored-case and can only contains word characters
+					// (letters, numbers, and underscores), up to the maximum length
+					int capabilities = CommandParser.capabilitiesStart(command);
+					String name = CommandParser.cleanUsername(command, 2, capabilities, ChatRoomRules.USERNAME_LENGTH);
+					if (name.isEmpty()) { // Nothing left of it, e.g. "0 +roster"
+						return false;
 					}
+					logged_in = true;
+					this.username = name;
+					this.roster_sync = CommandParser.hasCapability(command, "roster");
+					this.binary = CommandParser.hasCapability(command, "binary");
+					this.deflate = CommandParser.hasCapability(command, "deflate");
 
-					for (Connection c: ChatServer.allSockets) {
-						if (c.username.equals(this.username)) {
-							running = false;
-						}
+					if (!ChatServer.users.claim(this.username, this)) { // Atomic, two logins cannot both get a name
+						running = false;
 					}
 
 					return true;
@@ -212,31 +883,28 @@ public class ChatServer {
 		
 		// Get current time in GMT
 		private String getCurrentGMT() {
-			final SimpleDateFormat sdf = new SimpleDateFormat("YYYY:MM:dd:HH:mm:ss");
-		    sdf.setTimeZone(TimeZone.getTimeZone("GMT"));
-		    final String utcTime = sdf.format(new Date(System.currentTimeMillis()));
-
-		    return utcTime;
+			return GmtClock.now(); // Cached, formatted at most once per second
 		}
 		
 		/*
 		 * Server accepts username
 		 * This is command 1 - <1>< ><user1,user2,user3,...>< ><welcome message></r/n>
+		 * The user list ends with this user, the client relies on that.
 		 */
-		private String command1() {
-			String reply = "1 ";
+		private String command1(Connection[] all) {
+			StringBuilder reply = new StringBuilder(all.length * (ChatRoomRules.USERNAME_LENGTH + 1) + 64);
 			
-			for (Connection c: ChatServer.allSockets) {
-				reply = reply + c.username + ",";
-			}
-			int last_comma = reply.lastIndexOf(','); // Last comma on the list of online user
-			if (last_comma != -1) { // There is at least one user online
-				reply = reply.substring(0, last_comma); // get rid of the last , on the last user
+			reply.append("1 ");
+			for (Connection c: all) {
+				if (c == this) { // Everyone who came before this user
+					break;
+				}
+				reply.append(c.username).append(',');
 			}
+			reply.append(this.username);
+			reply.append(" Welcome to the chatroom, ").append(this.username);
 			
-			reply = reply + " Welcome to the chatroom, " + this.username;
-			
-			return reply;
+			return reply.toString();
 		}
 		
 		// Message when server denies user name
@@ -252,14 +920,16 @@ public class ChatServer {
 		 * This is command 5 - <5>< ><Username>< ><time>< ><message></r/n>
 		 * In reply to command 3 from client - <3>< ><message></r/n>
 		 */
-		private String command5(String message) {
-			String line;
+		String command5(String message) {
+			StringBuilder line = reply_builder;
 			
-			int space = message.indexOf(" ");
+			parser.parse(message, 2); // <3> and <message>
 			
-			line = "5 " + this.username + " " + this.getCurrentGMT() + " " + message.substring(space+1) + "\r\n";
+			line.setLength(0);
+			line.append("5 ").append(this.username).append(' ').append(this.getCurrentGMT()).append(' ');
+			parser.appendField(line, 1).append("\r\n");
 			
-			return line;
+			return line.toString();
 		}
 		
 		
@@ -274,32 +944,24 @@ public class ChatServer {
 		 * @return String[] - Array of 2 String with 
 		 * 		[0] What user to send to
 		 * 		[1] What the message is 
+		 * 		or null if the command does not have all its fields
 		 * 
 		 */
-		private String[] command6(String message) {
-			String line = message;
-			String from_user = null;
-			String to_user = null;
-			String reply = null;
-			
-			int space = 0;
-			
-			space = line.indexOf(" ");
-			
-			line = line.substring(space+1);
-			space = line.indexOf(" ");
-			from_user = line.substring(0, space);
+		String[] command6(String message) {
+			StringBuilder line = reply_builder;
 			
-			line = line.substring(space+1);
-			space = line.indexOf(" ");
-			to_user = line.substring(0, space);
-			
-			line = line.substring(space+1);
+			if (parser.parse(message, 4) < 4) { // <4>, <fromUsername>, <toUsername> and <message>
+				return null;
+			}
 			
-			reply = ("6 " + from_user + " " + to_user + " " + 
-					this.getCurrentGMT() + " " + line + "\r\n");
+			line.setLength(0);
+			line.append("6 ");
+			parser.appendField(line, 1).append(' ');
+			parser.appendField(line, 2).append(' ');
+			line.append(this.getCurrentGMT()).append(' ');
+			parser.appendField(line, 3).append("\r\n");
 			
-			return (new String[] {to_user, reply});
+			return (new String[] {parser.field(2), line.toString()});
 		}
 		
 		/**
@@ -342,5 +1004,48 @@ public class ChatServer {
 			return "10 " + this.username + "\r\n";
 		}
 		
+		
+		/**
+		 * Server announces a change to the roster, for clients that log in with +roster
+		 * This is command 12 - <12><" "><version><" "><+ or -><username></r/n>
+		 * Sent instead of command 9 and 10, the version goes up by one with every change.
+		 * 
+		 * @param change - '+' for a connection, '-' for a disconnection
+		 * 
+		 * @return String - the protocol to announce the change
+		 * 
+		 */
+		private String command12(char change) {
+			return "12 " + ChatServer.users.version() + " " + change + this.username + "\r\n";
+		}
+		
+		
+		/**
+		 * Server tells the client which room it is in now
+		 * This is command 16 - <16><" "><room><" "><members></r/n>
+		 * In reply to command 13 (<13><" "><room></r/n>, go to a room)
+		 * and command 14 (<14></r/n>, back to the lobby)
+		 * 
+		 * @return String - the protocol to confirm the room
+		 * 
+		 */
+		private String command16(String name, int members) {
+			return "16 " + name + " " + members;
+		}
+		
+		
+		/**
+		 * Server announces to a room that a user came in or went out
+		 * This is command 17 - <17><" "><room><" "><+ or -><username></r/n>
+		 * 
+		 * @param change - '+' for joining the room, '-' for leaving it
+		 * 
+		 * @return String - the protocol to announce the change
+		 * 
+		 */
+		private String command17(char change) {
+			return "17 " + room.name() + " " + change + this.username;
+		}
+		
 	}
 }
\ No newline at end of file
@@ -1,15 +1,26 @@
 /**
  * The View component of the MVC pattern.
  */
-import java.awt.Font;import java.awt.event.ActionListener;import java.awt.event.KeyListener;import java.awt.event.WindowAdapter;import java.awt.event.WindowEvent;import java.beans.PropertyChangeEvent;import javax.swing.BorderFactory;import javax.swing.JButton;import javax.swing.JFrame;import javax.swing.JPanel;import javax.swing.JScrollPane;import javax.swing.JTextArea;import javax.swing.JTextField;import javax.swing.border.Border;
+import java.awt.Font;import java.awt.event.ActionListener;import java.awt.event.KeyListener;import java.awt.event.WindowAdapter;import java.awt.event.WindowEvent;import java.beans.PropertyChangeEvent;import java.util.ArrayList;import java.util.List;import java.util.concurrent.ConcurrentLinkedQueue;import java.util.concurrent.atomic.AtomicBoolean;import javax.swing.BorderFactory;import javax.swing.JButton;import javax.swing.JFrame;import javax.swing.JList;import javax.swing.JPanel;import javax.swing.JScrollPane;import javax.swing.JTextField;import javax.swing.Timer;import javax.swing.border.Border;
 public class ChatView {
 	private JButton sendButton;
 	private JButton exitButton;
 	private JTextField sendText;
-	private JTextArea displayArea;
-	private JFrame frame;
+	private JList<String> displayArea;
+	private final Transcript transcript = new Transcript();
+	private JList<String> userList;
+	private final Roster roster = new Roster();
+	private JFrame frame;
+
+	// Server messages wait here and are shown on the EDT at most once a frame,
+	// so a burst of messages is a single update of the display
+	private static final int FRAME_MILLIS = 16;
+	private final ConcurrentLinkedQueue<PropertyChangeEvent> pending = new ConcurrentLinkedQueue<PropertyChangeEvent>();
+	private final AtomicBoolean flush_scheduled = new AtomicBoolean(false);
+	private final Timer flush_timer = new Timer(FRAME_MILLIS, e -> flushPending());
 	public ChatView() {
 		frame = new JFrame("GUI Demo");
+		flush_timer.setRepeats(false);
 		/** anonymous inner class to handle window closing events */
 		frame.addWindowListener(new WindowAdapter() {
 			public void windowClosing(WindowEvent evt) {
@@ -40,14 +51,28 @@ public class ChatView {
 		 */
 		frame.getContentPane().add(p,"South");	
 		/**
-		 * add the text area for displaying output. Associate
-		 * a scrollbar with this text area. Note we add the scrollpane
-		 * to the container, not the text area
+		 * add the list for displaying output. Associate
+		 * a scrollbar with this list. Note we add the scrollpane
+		 * to the container, not the list
 		 */
-		displayArea = new JTextArea(15, 40);
-		displayArea.setEditable(false);		displayArea.setFont(new Font("Arial", Font.PLAIN, 14));
+		displayArea = new JList<String>(transcript);
+		displayArea.setVisibleRowCount(15);		displayArea.setFont(new Font("Arial", Font.PLAIN, 14));
+		// Every row the same size, so the list only lays out the rows in view.
+		// Transcript wraps longer lines, W is about the widest character there is
+		displayArea.setPrototypeCellValue("W".repeat(Transcript.WRAP_COLUMNS));
 		JScrollPane scrollPane = new JScrollPane(displayArea);
 		frame.getContentPane().add(scrollPane,"Center");
+
+		/**
+		 * users online on the "east" end, kept up to date by joins and leaves
+		 */
+		userList = new JList<String>(roster);
+		userList.setVisibleRowCount(15);
+		userList.setFont(new Font("Arial", Font.PLAIN, 14));
+		userList.setPrototypeCellValue("abcdefghijklmnop");
+		JScrollPane userPane = new JScrollPane(userList);
+		userPane.setBorder(BorderFactory.createTitledBorder(etched, "Online"));
+		frame.getContentPane().add(userPane,"East");
 	
 		/**
 		 * set the title and size of the frame
@@ -60,8 +85,14 @@ public class ChatView {
 	public String getSendText() {
 		return sendText.getText().trim();
 	}
-	public void setDisplayArea(String message) {
-		displayArea.append(message);		   
+	public void setDisplayArea(List<String> messages) {
+		int last = transcript.getSize() - 1;
+		boolean following = (last < 0) || (displayArea.getLastVisibleIndex() >= last); // Not reading older lines
+
+		transcript.add(messages);
+		if (following) {
+			displayArea.ensureIndexIsVisible(transcript.getSize() - 1);
+		}
 		sendText.setText("/a "); // Default option is send a general message		sendText.setCaretPosition(sendText.getText().length()); // Set text cursor to the end of text field
 		sendText.requestFocus();
 	}
@@ -73,5 +104,34 @@ public class ChatView {
 	 }
 	 public void setSendKeyListener(KeyListener kl) {
 		 sendText.addKeyListener(kl);
-	 }	 	 public void modelPropertyChange(final PropertyChangeEvent event) {		 String event_name = event.getPropertyName();		 		 if (event_name.equals(ChatController.CONVERSATION_PROPERTY)) {			 this.setDisplayArea(event.getNewValue().toString() + "\n");		 }	 }
+	 }	 	 public void modelPropertyChange(final PropertyChangeEvent event) {		 String event_name = event.getPropertyName();		 		 if (event_name.equals(ChatController.CONVERSATION_PROPERTY) || event_name.equals(ChatController.ROSTER_PROPERTY) ||				 event_name.equals(ChatController.USER_JOINED_PROPERTY) || event_name.equals(ChatController.USER_LEFT_PROPERTY)) {			 pending.add(event);			 if (flush_scheduled.compareAndSet(false, true)) { // First message since the last flush				 flush_timer.restart();			 }		 }	 }
+
+	 /**
+	  * Show every pending message with one update of the transcript and
+	  * apply the joins and leaves to the user list. Runs on the EDT.
+	  */
+	 private void flushPending() {
+		 List<String> batch = new ArrayList<String>();
+		 PropertyChangeEvent event;
+
+		 flush_scheduled.set(false); // Messages that arrive while draining schedule the next flush
+		 while ((event = pending.poll()) != null) {
+			 switch (event.getPropertyName()) {
+			 case ChatController.ROSTER_PROPERTY:
+				 roster.reset((String[]) event.getNewValue());
+				 break;
+			 case ChatController.USER_JOINED_PROPERTY:
+				 roster.joined((String) event.getNewValue());
+				 break;
+			 case ChatController.USER_LEFT_PROPERTY:
+				 roster.left((String) event.getNewValue());
+				 break;
+			 default:
+				 batch.add(event.getNewValue().toString());
+			 }
+		 }
+		 if (!batch.isEmpty()) {
+			 this.setDisplayArea(batch);
+		 }
+	 }
 }
@@ -0,0 +1,362 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Links this ChatServer to the other nodes of a cluster.
+ *
+ * Every node keeps one persistent outgoing link to every other node and
+ * accepts their links on its cluster port, so traffic between two nodes
+ * goes one way on each socket. What a node sends is queued on the link
+ * and a writer thread sends everything queued in one flush. A link that
+ * drops is opened again, and starts with the node's own users. So does a
+ * link that had to drop lines while it was up, as soon as it can.
+ *
+ * Lines between nodes, in the Frame charset:
+ * 	H <node> <secret>	who is sending, its users follow in U+ lines
+ * 	U+ <user>			a user logged in on the sending node
+ * 	U- <user>			a user left the sending node
+ * 	B <room> <line>		a command 5 line for the room
+ * 	W <user> <line>		a command 6 line for a user on the receiving node
+ *
+ * The users of other nodes are in UserRegistry like local ones (see
+ * ChatServer.remoteJoined), so rosters, logins and whispers work across
+ * the cluster. Room membership stays on each node, a broadcast goes to
+ * the room of that name on every node. User names are cleaned up like
+ * the ones of logins, a line whose name has nothing left is ignored.
+ *
+ * A name is only checked against the users a node knows of. Two users
+ * that log in with the same name on two nodes at the same time both get
+ * it; each node then keeps its own user and ignores the other one's U+,
+ * so a whisper to that name goes to a different user on each node.
+ *
+ * The cluster port listens on chat.cluster.bind, loopback unless set, and
+ * a link that does not start with the cluster's shared secret is closed.
+ * The links are not encrypted, nodes on different hosts belong on a
+ * private network.
+ *
+ * Node names must be the host:port the other nodes list them by, e.g.
+ * java -Dchat.cluster.port=7401 -Dchat.cluster.peers=127.0.0.1:7402 -Dchat.cluster.secret=s3cret ChatServer nio 1401
+ *
+ */
+public class ClusterNode {
+	private static final long RECONNECT_MILLIS = 1000;
+
+	private final String name;
+	private final List<PeerLink> links = new ArrayList<PeerLink>();
+
+	// Metrics
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong(); 	// Links closed for a wrong secret
+
+	/**
+	 * Start the cluster configured in ServerConfig
+	 *
+	 * @return ClusterNode - this node, or null if chat.cluster.port is not set
+	 */
+	public static ClusterNode start() throws IOException {
+		if (ServerConfig.CLUSTER_PORT <= 0) {
+			return null;
+		}
+		if (ServerConfig.CLUSTER_SECRET.isEmpty()) {
+			throw new IOException("chat.cluster.secret must be set to run a cluster");
+		}
+
+		ClusterNode node = new ClusterNode(ServerConfig.CLUSTER_NODE);
+		for (String peer: ServerConfig.CLUSTER_PEERS.split(",")) {
+			if (!peer.trim().isEmpty()) {
+				node.links.add(node.new PeerLink(peer.trim()));
+			}
+		}
+		node.listen(ServerConfig.CLUSTER_BIND, ServerConfig.CLUSTER_PORT);
+		for (PeerLink link: node.links) {
+			daemon(link, "cluster-link-" + link.peer).start();
+		}
+		return node;
+	}
+
+	private ClusterNode(String name) {
+		this.name = name;
+	}
+
+	public String name() {
+		return name;
+	}
+
+	// A user logged in here
+	public void userJoined(String user) {
+		sendAll("U+ " + user);
+	}
+
+	// A user left this node
+	public void userLeft(String user) {
+		sendAll("U- " + user);
+	}
+
+	/**
+	 * Send a general message to the room of the same name on every other node
+	 *
+	 * @param room - the room
+	 * @param line - the command 5 line
+	 */
+	public void broadcast(String room, String line) {
+		sendAll("B " + room + " " + stripLineEnd(line));
+	}
+
+	/**
+	 * Send a whisper to the node a user is on
+	 *
+	 * @param node - the node
+	 * @param user - who it is for
+	 * @param line - the command 6 line
+	 *
+	 * @return boolean - false if it could not be queued for that node
+	 */
+	public boolean whisper(String node, String user, String line) {
+		for (PeerLink link: links) {
+			if (link.peer.equals(node)) {
+				return link.send("W " + user + " " + stripLineEnd(line));
+			}
+		}
+		return false;
+	}
+
+	private void sendAll(String line) {
+		for (PeerLink link: links) {
+			link.send(line);
+		}
+	}
+
+	// Commands 5 and 6 end with "\r\n" before the line separator, the receiver adds it back
+	private static String stripLineEnd(String line) {
+		int end = line.length();
+		while ((end > 0) && ((line.charAt(end - 1) == '\n') || (line.charAt(end - 1) == '\r'))) {
+			end--;
+		}
+		return line.substring(0, end);
+	}
+
+	// Accept the links of the other nodes
+	private void listen(String address, int port) throws IOException {
+		ServerSocket server = new ServerSocket();
+		server.setReuseAddress(true);
+		server.bind(new InetSocketAddress(address, port));
+
+		daemon(() -> {
+			while (true) {
+				try {
+					Socket s = server.accept();
+					daemon(() -> receive(s), "cluster-in-" + s.getRemoteSocketAddress()).start();
+				} catch (IOException ioe) {
+					System.err.println("Cluster port stopped: " + ioe);
+					return;
+				}
+			}
+		}, "cluster-accept").start();
+	}
+
+	// Read the lines of one other node until its link drops
+	private void receive(Socket s) {
+		String node = null;
+
+		try (BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), Frame.CHARSET))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.length() < 2) {
+					continue;
+				}
+				received.incrementAndGet();
+
+				if (line.startsWith("H ")) {
+					int space = line.indexOf(' ', 2);
+					if ((space == -1) || !isSecret(line.substring(space + 1))) {
+						rejected.incrementAndGet();
+						break; // Not one of ours
+					}
+					if ((node != null) && !node.equals(line.substring(2, space))) {
+						break; // A link speaks for one node only
+					}
+					node = line.substring(2, space);
+					ChatServer.remoteNodeLeft(node); // A new or resent state has all its users again
+				}
+				else if (node == null) {
+					break; // Not a cluster node
+				}
+				else if (line.startsWith("U+ ") || line.startsWith("U- ")) {
+					String user = CommandParser.cleanUsername(line, 3, ChatRoomRules.USERNAME_LENGTH);
+					if (user.isEmpty()) {
+						continue;
+					}
+					if (line.charAt(1) == '+') {
+						ChatServer.remoteJoined(user, node);
+					}
+					else {
+						ChatServer.remoteLeft(user, node);
+					}
+				}
+				else if (line.startsWith("B ") || line.startsWith("W ")) {
+					int space = line.indexOf(' ', 2);
+					if (space != -1) {
+						String to = line.substring(2, space);
+						String text = line.substring(space + 1) + "\r\n";
+						if (line.charAt(0) == 'B') {
+							ChatServer.remoteBroadcast(to, text);
+						}
+						else {
+							to = CommandParser.cleanUsername(to, 0, ChatRoomRules.USERNAME_LENGTH);
+							if (!to.isEmpty()) {
+								ChatServer.remoteWhisper(to, text);
+							}
+						}
+					}
+				}
+			}
+		} catch (IOException ioe) {
+		} finally {
+			try {
+				s.close();
+			} catch (IOException e) {}
+			if (node != null) {
+				ChatServer.remoteNodeLeft(node); // Its users are gone with it
+			}
+		}
+	}
+
+	// Compared in constant time, how long it takes tells nothing about the secret
+	private static boolean isSecret(String secret) {
+		return MessageDigest.isEqual(secret.getBytes(StandardCharsets.UTF_8),
+				ServerConfig.CLUSTER_SECRET.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static Thread daemon(Runnable r, String name) {
+		Thread t = new Thread(r, name);
+		t.setDaemon(true);
+		return t;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("node=" + name + " received=" + received.get() + " rejected=" + rejected.get());
+		for (PeerLink link: links) {
+			sb.append(" [").append(link).append(']');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * The outgoing link to one other node. Lines wait in a bounded queue,
+	 * what does not fit is dropped: the node gets all users again when the
+	 * link is back, or with the next batch if the link stayed up.
+	 */
+	class PeerLink implements Runnable {
+		final String peer;
+		private final ArrayBlockingQueue<String> queue = new ArrayBlockingQueue<String>(ServerConfig.CLUSTER_QUEUE);
+		private volatile boolean connected = false;
+		private volatile boolean resync = false; 	// Lines were dropped, the node's list of our users may be wrong
+
+		// Metrics
+		private final AtomicLong sent = new AtomicLong();
+		private final AtomicLong dropped = new AtomicLong();
+		private final AtomicLong flushes = new AtomicLong();
+
+		PeerLink(String peer) {
+			this.peer = peer;
+		}
+
+		// false if the line was dropped
+		boolean send(String line) {
+			if (!queue.offer(line)) {
+				dropped.incrementAndGet();
+				resync = true;
+				return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Who we are and who is here, as of now. U+ and U- lines still
+		 * queued are older than that and are left out, the other lines
+		 * follow in the same batch.
+		 *
+		 * @param out - the link
+		 * @param batch - lines to send next, the queue is drained into it
+		 */
+		private void sendState(Writer out, List<String> batch) throws IOException {
+			resync = false; // Lines dropped from now on need another one
+			queue.drainTo(batch);
+			batch.removeIf(line -> line.startsWith("U"));
+
+			out.write("H " + name + " " + ServerConfig.CLUSTER_SECRET + "\n");
+			for (String user: ChatServer.localUsers()) {
+				out.write("U+ " + user + "\n");
+			}
+		}
+
+		public void run() {
+			List<String> batch = new ArrayList<String>();
+			int colon = peer.lastIndexOf(':');
+			String host = peer.substring(0, colon);
+			int port = Integer.parseInt(peer.substring(colon + 1));
+
+			while (true) {
+				try (Socket s = new Socket(host, port)) {
+					s.setTcpNoDelay(true); // Batches are flushed whole, no need to wait for more
+					Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), Frame.CHARSET), ServerConfig.FLUSH_BYTES);
+
+					// Who we are and who is here, then whatever comes
+					batch.clear();
+					this.sendState(out, batch);
+					connected = true;
+
+					while (true) {
+						for (String line: batch) {
+							out.write(line);
+							out.write('\n');
+						}
+						out.flush(); // One write for the whole batch
+						sent.addAndGet(batch.size());
+						flushes.incrementAndGet();
+
+						batch.clear();
+						batch.add(queue.take());
+						if (resync) {
+							this.sendState(out, batch);
+						}
+						else {
+							queue.drainTo(batch);
+						}
+					}
+				} catch (IOException ioe) {
+					connected = false;
+				} catch (InterruptedException e) {
+					return;
+				}
+
+				try {
+					Thread.sleep(RECONNECT_MILLIS);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+
+		@Override
+		public String toString() {
+			long f = flushes.get();
+			return peer + (connected ? " up" : " down") + " queued=" + queue.size() + " sent=" + sent.get() +
+					" dropped=" + dropped.get() + " lines/flush=" + ((f == 0) ? 0 : (sent.get() / f));
+		}
+	}
+}
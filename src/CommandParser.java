@@ -0,0 +1,182 @@
+/**
+ * Splits one protocol line into its space separated fields.
+ *
+ * The parser only records where each field starts and ends in the line,
+ * it does not copy anything. Callers append the fields they need straight
+ * into the reply they are building, so parsing a message creates no
+ * intermediate Strings. One parser is reused for every line of a connection
+ * and is not thread safe. Both ChatServer and SocketReader use it.
+ *
+ */
+public class CommandParser {
+	private static final int MAX_FIELDS = 8;
+
+	private CharSequence line;
+	private final int[] starts = new int[MAX_FIELDS];
+	private final int[] ends = new int[MAX_FIELDS];
+	private int count = 0;
+
+	/**
+	 * Split a line at single spaces, like the indexOf(" ") chains it replaces:
+	 * two spaces in a row give an empty field.
+	 *
+	 * @param line - the line, without the line terminator
+	 * @param fields - most fields to split into, the last one takes the rest of the line
+	 *
+	 * @return int - how many fields the line has, at most fields
+	 */
+	public int parse(CharSequence line, int fields) {
+		int max = Math.min(fields, MAX_FIELDS);
+		int length = line.length();
+		int start = 0;
+
+		this.line = line;
+		this.count = 0;
+
+		for (int i = 0; (i < length) && (count < max - 1); i++) {
+			if (line.charAt(i) == ' ') {
+				starts[count] = start;
+				ends[count] = i;
+				count++;
+				start = i + 1;
+			}
+		}
+
+		starts[count] = start; // The rest of the line
+		ends[count] = length;
+		count++;
+
+		return count;
+	}
+
+	public int count() {
+		return count;
+	}
+
+	public int start(int field) {
+		return starts[field];
+	}
+
+	public int end(int field) {
+		return ends[field];
+	}
+
+	public int length(int field) {
+		return ends[field] - starts[field];
+	}
+
+	// Copy a field to the end of sb, no intermediate String
+	public StringBuilder appendField(StringBuilder sb, int field) {
+		return sb.append(line, starts[field], ends[field]);
+	}
+
+	// A field as a String, for when one is really needed (e.g. a map key)
+	public String field(int field) {
+		return line.subSequence(starts[field], ends[field]).toString();
+	}
+
+	public boolean fieldEquals(int field, String s) {
+		int length = length(field);
+
+		if (length != s.length()) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (line.charAt(starts[field] + i) != s.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Command code of a line: "<digit><space>..." or "10 ...".
+	 *
+	 * @param line - a line from the other side
+	 *
+	 * @return int - the command code, or -1 if the line has none
+	 */
+	public static int commandOf(CharSequence line) {
+		if ((line.length() >= 2) && isDigit(line.charAt(0)) && (line.charAt(1) == ' ')) {
+			return line.charAt(0) - '0';
+		}
+		if ((line.length() >= 3) && isDigit(line.charAt(0)) && isDigit(line.charAt(1)) && (line.charAt(2) == ' ')) {
+			return (line.charAt(0) - '0') * 10 + (line.charAt(1) - '0');
+		}
+		return -1;
+	}
+
+	/**
+	 * Lower case user name with only word characters (letters, digits and _),
+	 * cut to max_length. Same result as toLowerCase().replaceAll("\\W", "")
+	 * without compiling a regex for every login.
+	 *
+	 * @param line - the line that holds the user name
+	 * @param start - where the user name starts
+	 * @param max_length - longest user name allowed
+	 *
+	 * @return String - the user name
+	 */
+	public static String cleanUsername(CharSequence line, int start, int max_length) {
+		return cleanUsername(line, start, line.length(), max_length);
+	}
+
+	// Same, for a user name that ends before the end of the line
+	public static String cleanUsername(CharSequence line, int start, int end, int max_length) {
+		StringBuilder sb = new StringBuilder(max_length);
+
+		for (int i = start; (i < end) && (sb.length() < max_length); i++) {
+			char c = Character.toLowerCase(line.charAt(i));
+
+			if (((c >= 'a') && (c <= 'z')) || isDigit(c) || (c == '_')) {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Where the capabilities of a login line start. A client that knows
+	 * protocol extensions lists them after its user name, each one a word
+	 * after a '+': <0><" "><username><" +roster"> ...
+	 *
+	 * @param line - a login line
+	 *
+	 * @return int - index of the space before the first '+', or the length of the line
+	 */
+	public static int capabilitiesStart(CharSequence line) {
+		for (int i = 0; i + 1 < line.length(); i++) {
+			if ((line.charAt(i) == ' ') && (line.charAt(i + 1) == '+')) {
+				return i;
+			}
+		}
+		return line.length();
+	}
+
+	/**
+	 * Whether a login line lists a capability
+	 *
+	 * @param line - a login line
+	 * @param name - the capability, without the '+'
+	 *
+	 * @return boolean - true if "+name" is one of the words after the user name
+	 */
+	public static boolean hasCapability(CharSequence line, String name) {
+		int length = line.length();
+
+		for (int i = capabilitiesStart(line); i + 1 < length; i++) {
+			if ((line.charAt(i) == '+') && (line.charAt(i - 1) == ' ')) {
+				int end = i + 1 + name.length();
+				if ((end <= length) && ((end == length) || (line.charAt(end) == ' ')) &&
+						line.subSequence(i + 1, end).toString().equals(name)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static boolean isDigit(char c) {
+		return (c >= '0') && (c <= '9');
+	}
+}
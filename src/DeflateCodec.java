@@ -0,0 +1,208 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compressed frames for clients that log in with +deflate.
+ *
+ * The server answers such a login with the line "21 deflate", every
+ * frame after it is <varint length><deflated bytes>. Each frame is
+ * compressed on its own (raw deflate, no context carried over from the
+ * frames before) with a preset dictionary of what chat traffic is made
+ * of, so even a short line shrinks and the compressed bytes are the same
+ * for every recipient: a broadcast is compressed once, by the first
+ * writer that needs it, and shared (see Frame.deflated()).
+ *
+ * Works together with +binary, the binary frames are what is compressed.
+ * Clients keep sending text lines.
+ *
+ */
+public class DeflateCodec {
+	// Queued before the first compressed frame of a client, the writer switches when it gets to it
+	static final Frame SWITCH = Frame.control("21 deflate");
+
+	// What chat lines are made of, the most common last: deflate finds close matches cheaper
+	private static final byte[] DICTIONARY = (
+			"thanks thank you please sorry what where when why how who yes yeah okay lol haha " +
+			"good morning good night see you later tomorrow today anyone here everyone hello hi hey " +
+			"18 lobby:17 16 lobby 13 11 0 1 12 1 +12 1 -No such user: is offline, the message will be delivered at the next login " +
+			"Please log in!\r\n\n2 \r\n\n8 \r\n\n9 \r\n\n10 \r\n\nPrivate message sent!\r\n\n1  Welcome to the chatroom, " +
+			" 2026:01:01:00:00:00 \r\n\n6  \r\n\n5  ").getBytes(Frame.CHARSET);
+
+	private static final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>(); // Idle ones
+
+	// Metrics
+	private static final AtomicLong frames = new AtomicLong();
+	private static final AtomicLong bytes_in = new AtomicLong();
+	private static final AtomicLong bytes_out = new AtomicLong();
+
+	/**
+	 * Compress a frame, once for all +deflate clients (see Frame.deflated())
+	 *
+	 * @param frame - the frame as it would be written uncompressed
+	 *
+	 * @return Frame - <varint length><deflated bytes>
+	 */
+	static Frame deflate(Frame frame) {
+		Deflater deflater = deflaters.poll();
+		if (deflater == null) {
+			deflater = new Deflater(ServerConfig.DEFLATE_LEVEL, true);
+		}
+
+		try {
+			deflater.setDictionary(DICTIONARY);
+			deflater.setInput(frame.bytes());
+			deflater.finish();
+
+			ByteArrayOutputStream deflated = new ByteArrayOutputStream(frame.length() / 2 + 16);
+			byte[] chunk = new byte[Math.min(frame.length() + 64, 8192)];
+			while (!deflater.finished()) {
+				int n = deflater.deflate(chunk);
+				deflated.write(chunk, 0, n);
+			}
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream(deflated.size() + 3);
+			BinaryCodec.writeVarint(out, deflated.size());
+			out.writeBytes(deflated.toByteArray());
+
+			frames.incrementAndGet();
+			bytes_in.addAndGet(frame.length());
+			bytes_out.addAndGet(out.size());
+			return Frame.wrapBinary(out.toByteArray(), frame.users(), frame.table());
+		} finally {
+			deflater.reset();
+			deflaters.offer(deflater);
+		}
+	}
+
+	public static long frames() {
+		return frames.get();
+	}
+
+	public static String stats() {
+		long in = bytes_in.get();
+		return "frames=" + frames.get() + " bytes_in=" + in + " bytes_out=" + bytes_out.get() +
+				" ratio=" + ((in == 0) ? 0 : (100 * bytes_out.get() / in)) + "%";
+	}
+
+	/**
+	 * Lines from the server, like BufferedReader.readLine(), that are
+	 * inflated after "21 deflate" once the client calls inflate().
+	 * For text clients, only used by the thread that reads from the server.
+	 */
+	public static class LineReader {
+		private final InputStream in;
+		private final Inflater inflater = new Inflater(true);
+		private boolean inflating = false;
+
+		private byte[] text = new byte[0]; 	// An inflated frame, lines are taken from here
+		private int text_position = 0;
+		private final ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+
+		public LineReader(InputStream in) {
+			this.in = new BufferedInputStream(in);
+		}
+
+		// Everything after the line just read is compressed
+		public void inflate() {
+			inflating = true;
+		}
+
+		/**
+		 * The next line, without its terminator
+		 *
+		 * @return String - the line, or null when the server hung up
+		 */
+		public String readLine() throws IOException {
+			line.reset();
+
+			while (true) {
+				int b = nextByte();
+				if (b < 0) {
+					return (line.size() > 0) ? line.toString(Frame.CHARSET) : null;
+				}
+				if (b == '\n') {
+					break;
+				}
+				line.write(b);
+			}
+
+			int length = line.size();
+			byte[] bytes = line.toByteArray();
+			if ((length > 0) && (bytes[length - 1] == '\r')) {
+				length--;
+			}
+			return new String(bytes, 0, length, Frame.CHARSET);
+		}
+
+		private int nextByte() throws IOException {
+			if (!inflating) {
+				return in.read();
+			}
+			while (text_position == text.length) { // Frames never split a line
+				if (!readFrame()) {
+					return -1;
+				}
+			}
+			return text[text_position++] & 0xFF;
+		}
+
+		// Inflate the next frame, false when the server hung up
+		private boolean readFrame() throws IOException {
+			long length = 0;
+			int shift = 0;
+			int b;
+			do {
+				b = in.read();
+				if (b < 0) {
+					return false;
+				}
+				length |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+
+			byte[] deflated = new byte[(int) length];
+			int read = 0;
+			while (read < deflated.length) {
+				int n = in.read(deflated, read, deflated.length - read);
+				if (n < 0) {
+					throw new EOFException("Compressed frame cut short");
+				}
+				read += n;
+			}
+
+			try {
+				inflater.reset();
+				inflater.setDictionary(DICTIONARY);
+				inflater.setInput(deflated);
+
+				ByteArrayOutputStream out = new ByteArrayOutputStream(deflated.length * 4);
+				byte[] chunk = new byte[4096];
+				while (!inflater.finished()) {
+					int n = inflater.inflate(chunk);
+					if ((n == 0) && (inflater.needsInput() || inflater.needsDictionary())) {
+						throw new IOException("Compressed frame cut short");
+					}
+					out.write(chunk, 0, n);
+				}
+				text = out.toByteArray();
+				text_position = 0;
+			} catch (DataFormatException e) {
+				throw new IOException("Bad compressed frame", e);
+			}
+			return true;
+		}
+
+		public void close() throws IOException {
+			inflater.end();
+			in.close();
+		}
+	}
+}
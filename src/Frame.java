@@ -0,0 +1,159 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * One line of the protocol, encoded to bytes once.
+ *
+ * A broadcast builds a single Frame and puts the same instance in every
+ * recipient's outbound queue, so the text is never encoded per recipient.
+ * Frames are immutable, writers take their own view with buffer().
+ * The binary form for +binary clients is encoded the first time one of
+ * them gets the frame, and shared from then on (see BinaryCodec). So is
+ * the compressed form for +deflate clients (see DeflateCodec).
+ * Control frames are never dropped by an OutboundQueue to make room.
+ *
+ */
+public class Frame {
+	// Same charset the clients read with
+	public static final Charset CHARSET = Charset.defaultCharset();
+	private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(CHARSET);
+
+	private final byte[] bytes; 		// The line, including the line separator
+	private final ByteBuffer shared; 	// Read only, never handed out directly
+	private final int[] users; 			// Ids of the users a binary frame mentions, null for text
+	private final BinaryCodec.Table table; 	// What the ids in users mean, null for text
+	private final boolean evictable; 	// False for control frames
+	private volatile Frame binary; 		// This frame for binary clients, once one needed it
+	private volatile Frame deflated; 	// This frame compressed, once a +deflate client needed it
+
+	private Frame(byte[] bytes) {
+		this(bytes, null, null, true);
+	}
+
+	private Frame(byte[] bytes, int[] users, BinaryCodec.Table table, boolean evictable) {
+		this.bytes = bytes;
+		this.users = users;
+		this.table = table;
+		this.evictable = evictable;
+		this.shared = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Encode a line, for one recipient or many.
+	 *
+	 * @param line - the line without the line separator
+	 *
+	 * @return Frame - the encoded line
+	 */
+	public static Frame of(String line) {
+		byte[] text = line.getBytes(CHARSET);
+		byte[] bytes = new byte[text.length + LINE_SEPARATOR.length];
+
+		System.arraycopy(text, 0, bytes, 0, text.length);
+		System.arraycopy(LINE_SEPARATOR, 0, bytes, text.length, LINE_SEPARATOR.length);
+
+		return new Frame(bytes);
+	}
+
+	/**
+	 * Encode a line the client cannot do without, like a switch to
+	 * another encoding or a piece of a snapshot. A full OutboundQueue
+	 * never drops it, the client is disconnected instead.
+	 *
+	 * @param line - the line without the line separator
+	 *
+	 * @return Frame - the encoded line
+	 */
+	public static Frame control(String line) {
+		Frame f = of(line);
+		return new Frame(f.bytes, null, null, false);
+	}
+
+	/**
+	 * A line that is already encoded, e.g. read back from the MessageLog
+	 *
+	 * @param bytes - the line including the line separator, not copied
+	 *
+	 * @return Frame - the line
+	 */
+	static Frame wrap(byte[] bytes) {
+		return new Frame(bytes);
+	}
+
+	// Frames encoded by BinaryCodec
+	static Frame wrapBinary(byte[] bytes, int[] users, BinaryCodec.Table table) {
+		return new Frame(bytes, users, table, true);
+	}
+
+	/**
+	 * Several frames as one, so they go out in a single write.
+	 * The bytes are copied, nothing is encoded again.
+	 *
+	 * @param frames - the frames, in the order they are sent
+	 *
+	 * @return Frame - all of them back to back
+	 */
+	public static Frame join(Frame[] frames) {
+		int length = 0;
+		for (Frame f: frames) {
+			length += f.bytes.length;
+		}
+
+		byte[] bytes = new byte[length];
+		int at = 0;
+		for (Frame f: frames) {
+			System.arraycopy(f.bytes, 0, bytes, at, f.bytes.length);
+			at += f.bytes.length;
+		}
+		return new Frame(bytes);
+	}
+
+	// A view of the bytes with its own position, for one write
+	public ByteBuffer buffer() {
+		return shared.duplicate();
+	}
+
+	// The bytes, for stream writes. Must not be modified.
+	byte[] bytes() {
+		return bytes;
+	}
+
+	public int length() {
+		return bytes.length;
+	}
+
+	// False if an OutboundQueue must not drop this frame to make room
+	boolean isEvictable() {
+		return evictable;
+	}
+
+	// The same frame for binary clients, encoded by the first writer that needs it
+	Frame binary() {
+		Frame b = binary;
+		if (b == null) { // Two writers may both encode it, either result will do
+			b = BinaryCodec.encode(this);
+			binary = b;
+		}
+		return b;
+	}
+
+	// This frame compressed, by the first writer that needs it
+	Frame deflated() {
+		Frame d = deflated;
+		if (d == null) {
+			d = DeflateCodec.deflate(this);
+			deflated = d;
+		}
+		return d;
+	}
+
+	// Ids of the users a binary frame mentions
+	int[] users() {
+		return users;
+	}
+
+	// The id table of a binary frame
+	BinaryCodec.Table table() {
+		return table;
+	}
+}
@@ -0,0 +1,56 @@
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Current time in GMT, as stamped on command 5 and 6.
+ *
+ * The stamp only has whole seconds, so it is formatted at most once per
+ * second and the String is shared until the next second starts. The cached
+ * stamp is an immutable object behind a volatile field, any thread can
+ * call now() without locking.
+ *
+ */
+public class GmtClock {
+	// yyyy is the calendar year (YYYY would be the week-based year)
+	private static final DateTimeFormatter FORMAT =
+			DateTimeFormatter.ofPattern("yyyy:MM:dd:HH:mm:ss").withZone(ZoneOffset.UTC);
+
+	private static volatile Stamp last = new Stamp(Long.MIN_VALUE, null);
+
+	// Current time as yyyy:MM:dd:HH:mm:ss in GMT
+	public static String now() {
+		return format(System.currentTimeMillis());
+	}
+
+	/**
+	 * Time as yyyy:MM:dd:HH:mm:ss in GMT.
+	 *
+	 * @param millis - milliseconds since the epoch
+	 *
+	 * @return String - the stamp
+	 */
+	public static String format(long millis) {
+		long second = Math.floorDiv(millis, 1000);
+		Stamp s = last;
+
+		if (s.second != second) { // A new second, or another thread raced us to a different one
+			s = new Stamp(second, FORMAT.format(Instant.ofEpochSecond(second)));
+			last = s;
+		}
+		return s.text;
+	}
+
+	/**
+	 * A formatted second
+	 */
+	private static final class Stamp {
+		final long second;
+		final String text;
+
+		Stamp(long second, String text) {
+			this.second = second;
+			this.text = text;
+		}
+	}
+}
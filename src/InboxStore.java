@@ -0,0 +1,301 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Private messages for users who are offline, delivered at their next login.
+ *
+ * Everything is in one append-only file: a record when a user name is
+ * first used, one for every stored message and one when an inbox is
+ * delivered. Only an index of where each waiting message is (position,
+ * length, time) is kept in memory, the messages stay on disk until they
+ * are delivered. The file is rewritten without the delivered, dropped
+ * and expired messages once they take up more than half of it.
+ *
+ * Messages only wait for users that logged in before, a typo still gets
+ * "No such user". An inbox keeps at most INBOX_MAX messages, the oldest
+ * go first, and messages older than INBOX_MAX_MILLIS are not delivered.
+ *
+ * Off unless chat.inbox.dir is set. ChatServer calls the store from one
+ * thread of its own, in the order the calls were asked for, so its file
+ * I/O never holds up a connection.
+ *
+ */
+public class InboxStore {
+	private static final byte KNOWN = 1; 		// A user name that logged in
+	private static final byte MESSAGE = 2; 		// A whisper waiting for its user
+	private static final byte DELIVERED = 3; 	// Everything waiting for the user before this is gone
+	private static final long COMPACT_MIN_BYTES = 1024 * 1024;
+
+	private final File file;
+	private final int max_messages;
+	private final long max_age_millis;
+
+	private FileChannel channel;
+	private long length = 0; 		// End of the file, where the next record goes
+	private long garbage = 0; 		// Bytes of messages that will never be delivered
+
+	private final Set<String> known = new HashSet<String>();
+	private final Map<String, ArrayDeque<Entry>> inboxes = new HashMap<String, ArrayDeque<Entry>>();
+
+	/**
+	 * Open the store configured in ServerConfig
+	 *
+	 * @return InboxStore - the store, or null if chat.inbox.dir is empty
+	 */
+	public static InboxStore open() throws IOException {
+		if (ServerConfig.INBOX_DIR.isEmpty()) {
+			return null;
+		}
+		return new InboxStore(new File(ServerConfig.INBOX_DIR), ServerConfig.INBOX_MAX, ServerConfig.INBOX_MAX_MILLIS);
+	}
+
+	public InboxStore(File dir, int max_messages, long max_age_millis) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create inbox directory " + dir);
+		}
+		this.file = new File(dir, "inbox.dat");
+		this.max_messages = max_messages;
+		this.max_age_millis = max_age_millis;
+
+		load();
+		channel = new RandomAccessFile(file, "rw").getChannel();
+		channel.truncate(length); // Drop a record cut short by a crash
+	}
+
+	// Note a user name that logged in, messages can wait for it from now on
+	public synchronized void remember(String user) throws IOException {
+		if (known.add(user)) {
+			append(KNOWN, user, System.currentTimeMillis(), null);
+		}
+	}
+
+	/**
+	 * Keep a whisper for an offline user
+	 *
+	 * @param user - who it is for
+	 * @param frame - the command 6 line as it would have been sent
+	 *
+	 * @return boolean - false if no user with that name ever logged in
+	 */
+	public synchronized boolean store(String user, Frame frame) throws IOException {
+		if (!known.contains(user)) {
+			return false;
+		}
+
+		long time = System.currentTimeMillis();
+		long position = append(MESSAGE, user, time, frame.bytes());
+
+		ArrayDeque<Entry> inbox = inboxes.computeIfAbsent(user, u -> new ArrayDeque<Entry>());
+		inbox.addLast(new Entry(position, frame.length(), time));
+		if (inbox.size() > max_messages) { // Full, the oldest one goes
+			garbage += inbox.removeFirst().length;
+		}
+		return true;
+	}
+
+	/**
+	 * Take everything waiting for a user
+	 *
+	 * @param user - who just logged in
+	 *
+	 * @return Frame - the messages back to back, to send in one write, or null if there are none
+	 */
+	public synchronized Frame take(String user) throws IOException {
+		if (!inboxes.containsKey(user)) {
+			return null;
+		}
+
+		long oldest = System.currentTimeMillis() - max_age_millis;
+		List<Frame> frames = new ArrayList<Frame>(inboxes.get(user).size());
+		for (Entry e: inboxes.get(user)) {
+			if (e.time >= oldest) {
+				frames.add(Frame.wrap(read(channel, e)));
+			}
+		}
+
+		if ((length > COMPACT_MIN_BYTES) && (garbage * 2 > length)) {
+			try {
+				compact();
+			} catch (IOException ioe) { // The old file is still in use, nothing is lost
+				System.err.println("Could not compact " + file + ": " + ioe);
+			}
+		}
+
+		// Only now that the messages are in hand they are marked as delivered
+		append(DELIVERED, user, System.currentTimeMillis(), null);
+		ArrayDeque<Entry> delivered = inboxes.remove(user);
+		if (delivered != null) { // Compaction drops a whole inbox that expired
+			for (Entry e: delivered) {
+				garbage += e.length;
+			}
+		}
+		return frames.isEmpty() ? null : Frame.join(frames.toArray(new Frame[0]));
+	}
+
+	/**
+	 * Write a record at the end of the file
+	 * <type><user><time><length><bytes>
+	 *
+	 * @return long - where the bytes of the record start
+	 */
+	private long append(byte type, String user, long time, byte[] bytes) throws IOException {
+		ByteArrayOutputStream record = new ByteArrayOutputStream(64 + ((bytes == null) ? 0 : bytes.length));
+		DataOutputStream out = new DataOutputStream(record);
+
+		out.writeByte(type);
+		out.writeUTF(user);
+		out.writeLong(time);
+		out.writeInt((bytes == null) ? 0 : bytes.length);
+		int header = out.size();
+		if (bytes != null) {
+			out.write(bytes);
+		}
+
+		ByteBuffer b = ByteBuffer.wrap(record.toByteArray());
+		long start = length;
+		while (b.hasRemaining()) {
+			channel.write(b, start + b.position());
+		}
+		length += b.capacity();
+		return start + header;
+	}
+
+	private byte[] read(FileChannel from, Entry e) throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(e.length);
+
+		while (b.hasRemaining()) {
+			if (from.read(b, e.position + b.position()) < 0) {
+				throw new EOFException(file.toString());
+			}
+		}
+		return b.array();
+	}
+
+	// Build the index from the file, up to the last complete record
+	private void load() throws IOException {
+		if (!file.exists()) {
+			return;
+		}
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			while (true) {
+				byte type = in.readByte();
+				String user = in.readUTF();
+				long time = in.readLong();
+				int size = in.readInt();
+				long position = length + 1 + 2 + user.length() + 8 + 4; // User names are ASCII
+				in.readFully(new byte[size]);
+				length = position + size;
+
+				switch (type) {
+				case KNOWN:
+					known.add(user);
+					break;
+				case MESSAGE:
+					ArrayDeque<Entry> inbox = inboxes.computeIfAbsent(user, u -> new ArrayDeque<Entry>());
+					inbox.addLast(new Entry(position, size, time));
+					if (inbox.size() > max_messages) {
+						garbage += inbox.removeFirst().length;
+					}
+					break;
+				case DELIVERED:
+					ArrayDeque<Entry> delivered = inboxes.remove(user);
+					if (delivered != null) {
+						for (Entry e: delivered) {
+							garbage += e.length;
+						}
+					}
+					break;
+				}
+			}
+		} catch (EOFException e) {} // Cut short, everything before it counts
+	}
+
+	// Rewrite the file with only the user names and the messages still waiting.
+	// If that fails the store goes on with the old file, as it was.
+	private void compact() throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		FileChannel old = channel;
+		long old_length = length;
+		long old_garbage = garbage;
+		Map<String, ArrayDeque<Entry>> waiting = new HashMap<String, ArrayDeque<Entry>>();
+		long oldest = System.currentTimeMillis() - max_age_millis;
+
+		tmp.delete();
+		channel = new RandomAccessFile(tmp, "rw").getChannel();
+		length = 0;
+		garbage = 0;
+
+		try {
+			for (String user: known) {
+				append(KNOWN, user, 0, null);
+			}
+			for (Map.Entry<String, ArrayDeque<Entry>> inbox: inboxes.entrySet()) {
+				ArrayDeque<Entry> copied = new ArrayDeque<Entry>();
+				for (Entry e: inbox.getValue()) {
+					if (e.time >= oldest) {
+						byte[] bytes = read(old, e);
+						copied.addLast(new Entry(append(MESSAGE, inbox.getKey(), e.time, bytes), e.length, e.time));
+					}
+				}
+				if (!copied.isEmpty()) {
+					waiting.put(inbox.getKey(), copied);
+				}
+			}
+			channel.force(true);
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException ioe) {
+			channel.close();
+			tmp.delete();
+			channel = old;
+			length = old_length;
+			garbage = old_garbage;
+			throw ioe;
+		}
+		old.close();
+
+		inboxes.clear();
+		inboxes.putAll(waiting);
+	}
+
+	@Override
+	public synchronized String toString() {
+		int messages = 0;
+		for (ArrayDeque<Entry> inbox: inboxes.values()) {
+			messages += inbox.size();
+		}
+		return "known=" + known.size() + " inboxes=" + inboxes.size() + " messages=" + messages +
+				" bytes=" + length + " garbage=" + garbage;
+	}
+
+	// Where a waiting message is in the file
+	private static class Entry {
+		final long position;
+		final int length;
+		final long time;
+
+		Entry(long position, int length, long time) {
+			this.position = position;
+			this.length = length;
+			this.time = time;
+		}
+	}
+}
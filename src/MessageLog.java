@@ -0,0 +1,505 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the messages the server delivered, kept only when
+ * -Dchat.log.dir names a directory for it (whispers are in it too).
+ *
+ * The log is a directory of segments. Each segment is a file mapped into
+ * memory, named after the offset of its first record, with an index file
+ * that maps every few KB of records to their position. Connections hand
+ * their messages to append() and go on; one writer thread copies whole
+ * batches into the mapped segment and forces them to disk as the fsync
+ * policy says (group commit), so the disk never holds up a broadcast.
+ * Segments are deleted when the log is bigger or older than the retention
+ * limits.
+ *
+ * A record is <length><crc><offset><time><room length><room><line>, the
+ * line being the encoded Frame. Whispers are logged with "@<username>" of
+ * the recipient as the room.
+ *
+ * Logging never holds up the server: a record that finds the queue full
+ * is dropped and counted, and if the writer fails the log stops taking
+ * records until the server is restarted.
+ *
+ */
+public class MessageLog implements Runnable {
+
+	public enum FsyncPolicy {
+		ALWAYS, 	// Force every batch before the next one is written
+		INTERVAL, 	// Force at most every LOG_FSYNC_MILLIS
+		NEVER 		// Leave it to the operating system
+	}
+
+	private static final int HEADER = 4 + 4; 					// <length><crc>
+	private static final int INDEX_INTERVAL = 4096; 			// Bytes of records between index entries
+	private static final int INDEX_ENTRY = 8; 					// <offset in segment><position>
+	private static final int BATCH = 1024; 						// Most records written per group commit
+	private static final long RETENTION_CHECK_MILLIS = 60_000;
+
+	private final File dir;
+	private final int segment_bytes;
+	private final FsyncPolicy fsync;
+	private final long fsync_millis;
+	private final long retention_bytes;
+	private final long retention_millis;
+
+	private final ArrayBlockingQueue<Pending> queue;
+	private final CopyOnWriteArrayList<Segment> segments = new CopyOnWriteArrayList<Segment>(); // Oldest first
+	private volatile long next_offset = 0; 	// Offset of the next record, everything below it can be read
+	private volatile boolean failed = false; 	// The writer stopped, nothing more is logged
+
+	// Records that found the queue full or the writer stopped
+	private final AtomicLong dropped = new AtomicLong();
+
+	// Metrics, only written by the writer thread
+	private volatile long batches = 0;
+	private volatile long records = 0;
+	private volatile long forces = 0;
+
+	/**
+	 * Open the log configured in ServerConfig and start its writer
+	 *
+	 * @return MessageLog - the log, or null if chat.log.dir is empty
+	 */
+	public static MessageLog open() throws IOException {
+		if (ServerConfig.LOG_DIR.isEmpty()) {
+			return null;
+		}
+
+		MessageLog log = new MessageLog(new File(ServerConfig.LOG_DIR), ServerConfig.LOG_SEGMENT_BYTES,
+				ServerConfig.LOG_FSYNC, ServerConfig.LOG_FSYNC_MILLIS,
+				ServerConfig.LOG_RETENTION_BYTES, ServerConfig.LOG_RETENTION_MILLIS);
+		Thread writer = new Thread(log, "chat-log");
+		writer.setDaemon(true);
+		writer.start();
+		return log;
+	}
+
+	public MessageLog(File dir, int segment_bytes, FsyncPolicy fsync, long fsync_millis,
+			long retention_bytes, long retention_millis) throws IOException {
+		this.dir = dir;
+		this.segment_bytes = segment_bytes;
+		this.fsync = fsync;
+		this.fsync_millis = fsync_millis;
+		this.retention_bytes = retention_bytes;
+		this.retention_millis = retention_millis;
+		this.queue = new ArrayBlockingQueue<Pending>(ServerConfig.LOG_QUEUE);
+
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create log directory " + dir);
+		}
+		recover();
+	}
+
+	/**
+	 * Log a delivered message. Never waits: if the writer has fallen
+	 * LOG_QUEUE records behind, or has stopped, the record is dropped.
+	 *
+	 * @param room - the room it went to, or "@<username>" for a whisper
+	 * @param frame - the message as it was sent
+	 */
+	public void append(String room, Frame frame) {
+		if (failed || !queue.offer(new Pending(room, frame, System.currentTimeMillis()))) {
+			dropped.incrementAndGet();
+		}
+	}
+
+	// Offset the next record will get
+	public long nextOffset() {
+		return next_offset;
+	}
+
+	/**
+	 * Read records from the log
+	 *
+	 * @param from - offset of the first record, records already deleted are skipped
+	 * @param max - most records to read
+	 *
+	 * @return List<Record> - the records, oldest first
+	 */
+	public List<Record> read(long from, int max) {
+		List<Record> out = new ArrayList<Record>();
+		long end = next_offset; 	// Records below this are completely written
+
+		for (Segment s: segments) {
+			if ((out.size() >= max) || (from >= end)) {
+				break;
+			}
+			Segment next = s.next(segments);
+			if ((next != null) && (next.base <= from)) {
+				continue; // All of this segment comes before from
+			}
+			try {
+				s.read(Math.max(from, s.base), end, max, out);
+			} catch (IOException ioe) {
+				System.err.println("Could not read log segment " + s.file + ": " + ioe);
+			}
+			if (!out.isEmpty()) {
+				from = out.get(out.size() - 1).offset + 1;
+			}
+		}
+		return out;
+	}
+
+	// Writer thread
+	public void run() {
+		List<Pending> batch = new ArrayList<Pending>(BATCH);
+		long last_force = System.currentTimeMillis();
+		long last_retention = 0;
+		boolean dirty = false;
+
+		try {
+			while (true) {
+				batch.clear();
+				Pending first = (dirty && (fsync == FsyncPolicy.INTERVAL)) ?
+						queue.poll(fsync_millis, TimeUnit.MILLISECONDS) : queue.take();
+				if (first != null) {
+					batch.add(first);
+					queue.drainTo(batch, BATCH - 1);
+
+					for (Pending p: batch) {
+						write(p);
+					}
+					batches++;
+					records += batch.size();
+					dirty = true;
+				}
+
+				long now = System.currentTimeMillis();
+				if (dirty && ((fsync == FsyncPolicy.ALWAYS) || ((fsync == FsyncPolicy.INTERVAL) && (now - last_force >= fsync_millis)))) {
+					active().force();
+					forces++;
+					dirty = false;
+					last_force = now;
+				}
+				if (now - last_retention >= RETENTION_CHECK_MILLIS) {
+					retain(now);
+					last_retention = now;
+				}
+			}
+		} catch (InterruptedException e) {
+		} catch (IOException | RuntimeException e) {
+			System.err.println("Message log stopped: " + e);
+		} finally {
+			failed = true;
+			dropped.addAndGet(queue.size());
+			queue.clear();
+		}
+	}
+
+	// Copy one record into the active segment, starting a new segment if it does not fit
+	private void write(Pending p) throws IOException {
+		byte[] room = p.room.getBytes(StandardCharsets.UTF_8);
+		byte[] line = p.frame.bytes();
+		int body = 8 + 8 + 1 + Math.min(room.length, 255) + line.length;
+
+		if (HEADER + body > segment_bytes) {
+			return; // Can never fit, a message is far smaller than a segment
+		}
+		Segment s = active();
+		if ((s == null) || (s.size + HEADER + body > segment_bytes)) {
+			if (s != null) {
+				s.seal();
+			}
+			s = new Segment(dir, next_offset, segment_bytes);
+			segments.add(s);
+			retain(System.currentTimeMillis());
+		}
+
+		ByteBuffer b = s.data;
+		int start = s.size;
+		b.position(start + HEADER);
+		b.putLong(next_offset);
+		b.putLong(p.time);
+		b.put((byte) Math.min(room.length, 255));
+		b.put(room, 0, Math.min(room.length, 255));
+		b.put(line);
+
+		CRC32 crc = new CRC32();
+		ByteBuffer view = b.duplicate();
+		view.position(start + HEADER).limit(start + HEADER + body);
+		crc.update(view);
+		b.putInt(start, body);
+		b.putInt(start + 4, (int) crc.getValue());
+
+		s.index(next_offset, start);
+		s.size = start + HEADER + body;
+		next_offset++; // Publishes the record to readers
+	}
+
+	private Segment active() {
+		return segments.isEmpty() ? null : segments.get(segments.size() - 1);
+	}
+
+	// Delete the oldest segments while the log is too big or too old, never the active one
+	private void retain(long now) {
+		long total = 0;
+		for (Segment s: segments) {
+			total += s.size;
+		}
+
+		while (segments.size() > 1) {
+			Segment oldest = segments.get(0);
+			boolean too_big = total > retention_bytes;
+			boolean too_old = now - oldest.file.lastModified() > retention_millis;
+			if (!too_big && !too_old) {
+				break;
+			}
+			segments.remove(0);
+			total -= oldest.size;
+			oldest.delete();
+		}
+	}
+
+	// Find the segments of an earlier run, and where the last one ends
+	private void recover() throws IOException {
+		File[] files = dir.listFiles((d, name) -> name.endsWith(".log"));
+		List<Long> bases = new ArrayList<Long>();
+
+		for (File f: (files == null) ? new File[0] : files) {
+			try {
+				bases.add(Long.parseLong(f.getName().substring(0, f.getName().length() - 4)));
+			} catch (NumberFormatException e) {}
+		}
+		bases.sort(null);
+
+		for (int i = 0; i < bases.size(); i++) {
+			boolean last = (i == bases.size() - 1);
+			Segment s = Segment.reopen(dir, bases.get(i), segment_bytes, last);
+			segments.add(s);
+			if (last) {
+				next_offset = s.base + s.count;
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		long b = batches;
+		return "segments=" + segments.size() + " next_offset=" + next_offset + " queued=" + queue.size() +
+				" records/batch=" + ((b == 0) ? 0 : (records / b)) + " forces=" + forces + " fsync=" + fsync +
+				" dropped=" + dropped.get() + (failed ? " FAILED" : "");
+	}
+
+	/**
+	 * One logged message
+	 */
+	public static class Record {
+		public final long offset;
+		public final long time; 		// When it was delivered, in milliseconds
+		public final String room;
+		public final byte[] line; 		// The encoded Frame
+
+		Record(long offset, long time, String room, byte[] line) {
+			this.offset = offset;
+			this.time = time;
+			this.room = room;
+			this.line = line;
+		}
+	}
+
+	// A message waiting for the writer
+	private static class Pending {
+		final String room;
+		final Frame frame;
+		final long time;
+
+		Pending(String room, Frame frame, long time) {
+			this.room = room;
+			this.frame = frame;
+			this.time = time;
+		}
+	}
+
+	/**
+	 * One segment file and its index, both mapped into memory
+	 */
+	private static class Segment {
+		final long base; 				// Offset of the first record
+		final File file;
+		final File index_file;
+		MappedByteBuffer data; 			// Read write while active, read only once sealed
+		MappedByteBuffer index;
+		volatile int size = 0; 			// Bytes of records
+		int count = 0; 					// Records, only kept up by recovery
+		int index_entries = 0;
+		int last_indexed = -INDEX_INTERVAL;
+
+		private Segment(File dir, long base) {
+			this.base = base;
+			this.file = new File(dir, String.format("%020d.log", base));
+			this.index_file = new File(dir, String.format("%020d.idx", base));
+		}
+
+		// A new, empty active segment
+		Segment(File dir, long base, int segment_bytes) throws IOException {
+			this(dir, base);
+			map(segment_bytes, true);
+		}
+
+		/**
+		 * A segment of an earlier run. The last one is scanned to find its
+		 * end, a record that is cut short or fails its crc ends it.
+		 */
+		static Segment reopen(File dir, long base, int segment_bytes, boolean last) throws IOException {
+			Segment s = new Segment(dir, base);
+
+			if (!last) {
+				s.size = (int) s.file.length();
+				return s; // Mapped when it is read
+			}
+
+			s.map(segment_bytes, true);
+			s.index_entries = 0;
+			int position = 0;
+			while (position + HEADER <= segment_bytes) {
+				int body = s.data.getInt(position);
+				if ((body <= 0) || (position + HEADER + body > segment_bytes)) {
+					break;
+				}
+				ByteBuffer view = s.data.duplicate();
+				view.position(position + HEADER).limit(position + HEADER + body);
+				CRC32 crc = new CRC32();
+				crc.update(view);
+				if ((int) crc.getValue() != s.data.getInt(position + 4)) {
+					break;
+				}
+				s.index(base + s.count, position);
+				s.count++;
+				position += HEADER + body;
+			}
+			s.size = position;
+			return s;
+		}
+
+		private void map(int segment_bytes, boolean write) throws IOException {
+			int index_bytes = (segment_bytes / INDEX_INTERVAL + 1) * INDEX_ENTRY;
+			FileChannel.MapMode mode = write ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+
+			try (RandomAccessFile f = new RandomAccessFile(file, write ? "rw" : "r");
+					RandomAccessFile i = new RandomAccessFile(index_file, write ? "rw" : "r")) {
+				data = f.getChannel().map(mode, 0, write ? segment_bytes : f.length());
+				index = i.getChannel().map(mode, 0, write ? index_bytes : i.length());
+			}
+			if (!write) {
+				index_entries = index.capacity() / INDEX_ENTRY;
+			}
+		}
+
+		// Add an index entry if the last one is far enough back
+		void index(long offset, int position) {
+			if (position - last_indexed >= INDEX_INTERVAL) {
+				index.putInt(index_entries * INDEX_ENTRY, (int) (offset - base));
+				index.putInt(index_entries * INDEX_ENTRY + 4, position);
+				index_entries++;
+				last_indexed = position;
+			}
+		}
+
+		void force() {
+			data.force();
+			index.force();
+		}
+
+		// No more records, cut the files to what they hold
+		void seal() throws IOException {
+			force();
+			try (RandomAccessFile f = new RandomAccessFile(file, "rw");
+					RandomAccessFile i = new RandomAccessFile(index_file, "rw")) {
+				f.setLength(size);
+				i.setLength((long) index_entries * INDEX_ENTRY);
+			} catch (IOException ioe) {
+				// Some systems do not allow it while mapped, the zeros at the end are harmless
+			}
+			data = null; 	// Mapped again read only by the first read
+			index = null;
+		}
+
+		void delete() {
+			data = null;
+			index = null;
+			file.delete();
+			index_file.delete();
+		}
+
+		Segment next(List<Segment> all) {
+			int i = all.indexOf(this);
+			return ((i >= 0) && (i + 1 < all.size())) ? all.get(i + 1) : null;
+		}
+
+		/**
+		 * Read the records from an offset up to the end of the log
+		 *
+		 * @param from - first offset wanted, at least base
+		 * @param end - next_offset of the log when the read started
+		 * @param max - most records in out when done
+		 * @param out - gets the records
+		 */
+		void read(long from, long end, int max, List<Record> out) throws IOException {
+			MappedByteBuffer mapped = data;
+			MappedByteBuffer idx = index;
+			if (mapped == null) {
+				synchronized (this) {
+					if (data == null) {
+						map(0, false);
+					}
+					mapped = data;
+					idx = index;
+				}
+			}
+			ByteBuffer b = mapped.duplicate();
+			int limit = size;
+
+			// Closest index entry at or before from
+			int position = 0;
+			int lo = 0;
+			int hi = Math.min(index_entries, idx.capacity() / INDEX_ENTRY) - 1;
+			while (lo <= hi) {
+				int mid = (lo + hi) >>> 1;
+				if (base + idx.getInt(mid * INDEX_ENTRY) <= from) {
+					position = idx.getInt(mid * INDEX_ENTRY + 4);
+					lo = mid + 1;
+				}
+				else {
+					hi = mid - 1;
+				}
+			}
+
+			while ((out.size() < max) && (position + HEADER <= limit)) {
+				int body = b.getInt(position);
+				if (body <= 0) {
+					break;
+				}
+				b.position(position + HEADER);
+				long offset = b.getLong();
+				if (offset >= end) {
+					break;
+				}
+				long time = b.getLong();
+				byte[] room = new byte[b.get() & 0xff];
+				b.get(room);
+				int line_length = body - 8 - 8 - 1 - room.length;
+				position += HEADER + body;
+				if (offset < from) {
+					continue;
+				}
+				byte[] line = new byte[line_length];
+				b.get(line);
+				out.add(new Record(offset, time, new String(room, StandardCharsets.UTF_8), line));
+			}
+		}
+	}
+}
@@ -0,0 +1,189 @@
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded queue of replies waiting to be written to one client.
+ *
+ * Anyone can offer to it without blocking. The connection's writer takes
+ * from it and does the slow socket write, so a client that does not read
+ * only holds up itself. What happens when the queue is full is decided
+ * by the OverflowPolicy. Control frames (see Frame.control) are never
+ * dropped: with nothing else to drop, the client is disconnected.
+ *
+ */
+public class OutboundQueue {
+
+	public enum OverflowPolicy {
+		DROP_OLDEST,	// Forget the oldest reply that is not a control frame to make room
+		DISCONNECT		// Drop the slow client
+	}
+
+	private final ArrayDeque<Frame> queue;
+	private final int capacity;
+	private final OverflowPolicy policy;
+
+	private boolean closed = false; 	// No more offers, what is queued still gets written
+	private boolean aborted = false; 	// Client got disconnected for being too slow
+
+	private long queued_bytes = 0;
+
+	// Metrics
+	private long offered = 0;
+	private long dropped = 0;
+	private int high_water = 0;
+	private long flushes = 0; 			// Writes of one or more coalesced replies
+	private long flushed_frames = 0;
+	private long flushed_bytes = 0;
+
+	public OutboundQueue(int capacity, OverflowPolicy policy) {
+		this.queue = new ArrayDeque<Frame>();
+		this.capacity = capacity;
+		this.policy = policy;
+	}
+
+	public OutboundQueue() {
+		this(ServerConfig.QUEUE_CAPACITY, ServerConfig.QUEUE_OVERFLOW);
+	}
+
+	/**
+	 * Queue a reply, never blocks.
+	 *
+	 * @param message - the reply
+	 *
+	 * @return boolean - false if the queue overflowed and the client has to be disconnected
+	 */
+	public synchronized boolean offer(Frame message) {
+		if (closed) { // Nobody is writing any more
+			return true;
+		}
+
+		if (queue.size() >= capacity) {
+			dropped++;
+
+			if ((policy == OverflowPolicy.DISCONNECT) || !dropOldest()) {
+				abort();
+				return false;
+			}
+		}
+
+		queue.add(message);
+		queued_bytes += message.length();
+		offered++;
+		high_water = Math.max(high_water, queue.size());
+		notifyAll();
+
+		return true;
+	}
+
+	// Forget the oldest reply that can be missed, false if every one is a control frame
+	private boolean dropOldest() {
+		Iterator<Frame> it = queue.iterator();
+
+		while (it.hasNext()) {
+			Frame f = it.next();
+			if (f.isEvictable()) {
+				it.remove();
+				queued_bytes -= f.length();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Wait for the next reply.
+	 *
+	 * @return Frame - the reply, or null once the queue is closed and empty
+	 */
+	public synchronized Frame take() throws InterruptedException {
+		while (queue.isEmpty() && !closed) {
+			wait();
+		}
+		return poll();
+	}
+
+	/**
+	 * Wait for the next reply, but not past a deadline.
+	 *
+	 * @param deadline - System.nanoTime() to give up at
+	 *
+	 * @return Frame - the reply, or null if none came in time or the queue is closed and empty
+	 */
+	public synchronized Frame poll(long deadline) throws InterruptedException {
+		long left;
+
+		while (queue.isEmpty() && !closed && ((left = deadline - System.nanoTime()) > 0)) {
+			TimeUnit.NANOSECONDS.timedWait(this, left);
+		}
+		return poll();
+	}
+
+	// Next reply, or null if there is none right now
+	public synchronized Frame poll() {
+		Frame f = queue.poll();
+
+		if (f != null) {
+			queued_bytes -= f.length();
+		}
+		return f;
+	}
+
+	public synchronized boolean isEmpty() {
+		return queue.isEmpty();
+	}
+
+	// Stop taking replies, the writer finishes what is queued
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	// Stop taking replies and forget what is queued
+	public synchronized void abort() {
+		queue.clear();
+		queued_bytes = 0;
+		aborted = true;
+		close();
+	}
+
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	public synchronized boolean isAborted() {
+		return aborted;
+	}
+
+	public synchronized int depth() {
+		return queue.size();
+	}
+
+	public synchronized long dropped() {
+		return dropped;
+	}
+
+	// Bytes waiting to be written
+	public synchronized long bytes() {
+		return queued_bytes;
+	}
+
+	/**
+	 * Count one write that coalesced some replies
+	 *
+	 * @param frames - how many replies went out together
+	 * @param bytes - how many bytes that was
+	 */
+	public synchronized void recordFlush(int frames, long bytes) {
+		flushes++;
+		flushed_frames += frames;
+		flushed_bytes += bytes;
+	}
+
+	public synchronized String toString() {
+		return "depth=" + queue.size() + " high=" + high_water + " offered=" + offered + " dropped=" + dropped +
+				" flushes=" + flushes +
+				" frames/flush=" + ((flushes == 0) ? 0 : (flushed_frames / flushes)) +
+				" bytes/flush=" + ((flushes == 0) ? 0 : (flushed_bytes / flushes));
+	}
+}
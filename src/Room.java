@@ -0,0 +1,145 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One chat room: the connections that get each other's general messages.
+ *
+ * Like UserRegistry, a broadcast iterates an immutable snapshot of the
+ * members without locking, so sending to a room costs only as much as
+ * the room is big. Members are added and removed by RoomRegistry, one
+ * change at a time. Every room counts its own traffic for ServerMetrics.
+ *
+ * A room also keeps its last ServerConfig.HISTORY_SIZE general messages,
+ * as the Frames that were broadcast. Whoever joins gets them in a single
+ * write. Recording a message and joining take the room's lock, so a
+ * message is either in the history a new member gets or sent to it, never
+ * both or neither, and the history always comes first.
+ *
+ */
+public class Room {
+	private final String name;
+	private volatile ChatServer.Connection[] members; 	// In the order they joined
+
+	private final Frame[] history; 	// Ring of the most recent general messages
+	private int history_start = 0; 	// Oldest one
+	private int history_count = 0;
+
+	// Metrics
+	private final AtomicLong messages = new AtomicLong(); 		// General messages sent to the room
+	private final AtomicLong deliveries = new AtomicLong(); 	// Messages times the members they went to
+	private final AtomicLong bytes = new AtomicLong(); 		// Bytes queued for the members
+	private volatile int peak = 0; 								// Most members at one time
+
+	public Room(String name) {
+		this.name = name;
+		this.members = new ChatServer.Connection[0];
+		this.history = new Frame[Math.max(0, ServerConfig.HISTORY_SIZE)];
+	}
+
+	public String name() {
+		return name;
+	}
+
+	/**
+	 * Everyone in the room at this moment. The array must not be modified.
+	 *
+	 * @return Connection[] - the members in the order they joined
+	 */
+	public ChatServer.Connection[] members() {
+		return members;
+	}
+
+	public int size() {
+		return members.length;
+	}
+
+	// Only called by RoomRegistry. The new member is sent the history.
+	synchronized void add(ChatServer.Connection c) {
+		ChatServer.Connection[] current = members;
+		ChatServer.Connection[] next = new ChatServer.Connection[current.length + 1];
+
+		System.arraycopy(current, 0, next, 0, current.length);
+		next[current.length] = c;
+		members = next;
+		peak = Math.max(peak, next.length);
+
+		if (history_count > 0) {
+			c.writeToClient(Frame.join(recent()));
+		}
+	}
+
+	// Only called by RoomRegistry, false if c was not a member
+	synchronized boolean remove(ChatServer.Connection c) {
+		ChatServer.Connection[] current = members;
+
+		for (int i = 0; i < current.length; i++) {
+			if (current[i] == c) {
+				ChatServer.Connection[] next = new ChatServer.Connection[current.length - 1];
+				System.arraycopy(current, 0, next, 0, i);
+				System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+				members = next;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Keep a general message in the history, before it is sent
+	 *
+	 * @param frame - the message
+	 *
+	 * @return Connection[] - the members to send it to
+	 */
+	public synchronized ChatServer.Connection[] record(Frame frame) {
+		if (history.length > 0) {
+			history[(history_start + history_count) % history.length] = frame;
+			if (history_count < history.length) {
+				history_count++;
+			}
+			else {
+				history_start = (history_start + 1) % history.length;
+			}
+		}
+		return members;
+	}
+
+	// The history, oldest first
+	synchronized Frame[] recent() {
+		Frame[] out = new Frame[history_count];
+
+		for (int i = 0; i < history_count; i++) {
+			out[i] = history[(history_start + i) % history.length];
+		}
+		return out;
+	}
+
+	/**
+	 * Fill the history of a room that is new, from what RoomRegistry kept
+	 * of it (see RoomRegistry.setLog)
+	 *
+	 * @param recent - earlier messages of the room, oldest first
+	 */
+	synchronized void seed(Frame[] recent) {
+		for (Frame f: recent) {
+			record(f);
+		}
+	}
+
+	/**
+	 * Count a general message sent to the room
+	 *
+	 * @param recipients - how many members it was queued for
+	 * @param length - its encoded length
+	 */
+	public void recordBroadcast(int recipients, int length) {
+		messages.incrementAndGet();
+		deliveries.addAndGet(recipients);
+		bytes.addAndGet((long) recipients * length);
+	}
+
+	@Override
+	public String toString() {
+		return name + " members=" + members.length + " peak=" + peak + " messages=" + messages.get() +
+				" deliveries=" + deliveries.get() + " bytes=" + bytes.get();
+	}
+}
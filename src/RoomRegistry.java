@@ -0,0 +1,155 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The rooms of the chat server, by name.
+ *
+ * Every logged in connection is in exactly one room, the lobby until it
+ * joins another one. A room is made by the first user who joins it and
+ * goes away with the last one who leaves, except the lobby which always
+ * stays. Joining and leaving change a room inside ConcurrentHashMap.compute,
+ * so a room is never removed while someone is joining it.
+ *
+ * The history of a room that goes away is kept in memory, for the last
+ * ServerConfig.HISTORY_ROOMS such rooms, and a room that is made again
+ * starts with it. The rooms' histories after a restart are read from the
+ * end of the message log once, before the server takes clients, so
+ * joining a room never waits for the disk.
+ *
+ */
+public class RoomRegistry {
+	public static final String LOBBY = "lobby";
+
+	private final ConcurrentHashMap<String, Room> rooms;
+	private final Map<String, Frame[]> gone; 	// History of rooms that went away, least recently used first
+
+	public RoomRegistry() {
+		this.rooms = new ConcurrentHashMap<String, Room>();
+		this.rooms.put(LOBBY, new Room(LOBBY));
+		this.gone = Collections.synchronizedMap(new LinkedHashMap<String, Frame[]>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Frame[]> eldest) {
+				return size() > ServerConfig.HISTORY_ROOMS;
+			}
+		});
+	}
+
+	/**
+	 * Read the history of every room from the end of the message log,
+	 * at startup before anyone joins
+	 *
+	 * @param log - the message log, or null if there is none
+	 */
+	public void setLog(MessageLog log) {
+		if ((log == null) || (ServerConfig.HISTORY_SIZE <= 0)) {
+			return;
+		}
+
+		Map<String, ArrayDeque<Frame>> found = new HashMap<String, ArrayDeque<Frame>>();
+		long from = Math.max(0, log.nextOffset() - ServerConfig.HISTORY_SCAN);
+		for (MessageLog.Record r: log.read(from, ServerConfig.HISTORY_SCAN)) {
+			if (r.room.startsWith("@")) {
+				continue; // A whisper
+			}
+			ArrayDeque<Frame> recent = found.computeIfAbsent(r.room, k -> new ArrayDeque<Frame>());
+			if (recent.size() == ServerConfig.HISTORY_SIZE) {
+				recent.removeFirst();
+			}
+			recent.addLast(Frame.wrap(r.line));
+		}
+
+		for (Map.Entry<String, ArrayDeque<Frame>> e: found.entrySet()) {
+			Frame[] recent = e.getValue().toArray(new Frame[0]);
+			if (e.getKey().equals(LOBBY)) {
+				rooms.get(LOBBY).seed(recent);
+			}
+			else {
+				gone.put(e.getKey(), recent);
+			}
+		}
+	}
+
+	/**
+	 * Put a connection in a room, made if it does not exist yet.
+	 * The connection is sent the room's recent messages.
+	 *
+	 * @param name - the room's name
+	 * @param c - the connection that joins
+	 *
+	 * @return Room - the room it is in now
+	 */
+	public Room join(String name, ChatServer.Connection c) {
+		return rooms.compute(name, (key, room) -> {
+			if (room == null) {
+				room = new Room(key);
+				Frame[] recent = gone.remove(key);
+				if (recent != null) {
+					room.seed(recent);
+				}
+			}
+			room.add(c);
+			return room;
+		});
+	}
+
+	/**
+	 * Take a connection out of a room. An empty room goes away.
+	 *
+	 * @param room - the room it is in
+	 * @param c - the connection that leaves
+	 *
+	 * @return boolean - false if it was not in the room
+	 */
+	public boolean leave(Room room, ChatServer.Connection c) {
+		boolean[] removed = new boolean[1];
+
+		rooms.computeIfPresent(room.name(), (key, current) -> {
+			removed[0] = current.remove(c);
+			if ((current.size() == 0) && !key.equals(LOBBY)) {
+				Frame[] recent = current.recent();
+				if (recent.length > 0) {
+					gone.put(key, recent);
+				}
+				return null;
+			}
+			return current;
+		});
+		return removed[0];
+	}
+
+	public Room get(String name) {
+		return rooms.get(name);
+	}
+
+	public int size() {
+		return rooms.size();
+	}
+
+	// All rooms at this moment, in no particular order
+	public Collection<Room> rooms() {
+		return rooms.values();
+	}
+
+	/**
+	 * The rooms for a room list
+	 *
+	 * @return List<String> - "<name>:<members>" for every room
+	 */
+	public List<String> list() {
+		List<String> list = new ArrayList<String>(rooms.size());
+
+		for (Room r: rooms.values()) {
+			list.add(r.name() + ":" + r.size());
+		}
+		return list;
+	}
+}
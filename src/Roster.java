@@ -0,0 +1,67 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import javax.swing.AbstractListModel;
+
+/**
+ * The users online, sorted by name, as the ListModel of ChatView's user list.
+ *
+ * Joins and leaves are applied one at a time: a binary search finds the
+ * row and only that row is reported to the list, the rest of the list is
+ * not rebuilt or repainted. Only used on the EDT.
+ *
+ */
+public class Roster extends AbstractListModel<String> {
+	private static final long serialVersionUID = 1L;
+
+	private final ArrayList<String> users = new ArrayList<String>();
+
+	@Override
+	public int getSize() {
+		return users.size();
+	}
+
+	@Override
+	public String getElementAt(int index) {
+		return users.get(index);
+	}
+
+	/**
+	 * Replace everyone, e.g. with the list from the welcome message
+	 *
+	 * @param all - the users online, in any order
+	 */
+	public void reset(String[] all) {
+		int old_size = users.size();
+
+		users.clear();
+		if (old_size > 0) {
+			fireIntervalRemoved(this, 0, old_size - 1);
+		}
+		users.addAll(Arrays.asList(all));
+		Collections.sort(users);
+		if (!users.isEmpty()) {
+			fireIntervalAdded(this, 0, users.size() - 1);
+		}
+	}
+
+	public void joined(String user) {
+		int i = Collections.binarySearch(users, user);
+
+		if (i < 0) { // Not there yet, i tells where it goes
+			i = -i - 1;
+			users.add(i, user);
+			fireIntervalAdded(this, i, i);
+		}
+	}
+
+	public void left(String user) {
+		int i = Collections.binarySearch(users, user);
+
+		if (i >= 0) {
+			users.remove(i);
+			fireIntervalRemoved(this, i, i);
+		}
+	}
+}
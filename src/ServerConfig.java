@@ -0,0 +1,77 @@
+/**
+ * Tunable settings of the chat server.
+ *
+ * Every value can be changed at startup with a system property,
+ * e.g. java -Dchat.queue.capacity=256 ChatServer
+ *
+ */
+public class ServerConfig {
+	// Replies a client can fall behind by before the overflow policy kicks in
+	public final static int QUEUE_CAPACITY = Integer.getInteger("chat.queue.capacity", 1024);
+	// drop_oldest or disconnect
+	public final static OutboundQueue.OverflowPolicy QUEUE_OVERFLOW =
+			OutboundQueue.OverflowPolicy.valueOf(System.getProperty("chat.queue.overflow", "disconnect").toUpperCase());
+
+	// Replies are coalesced into one write until this many bytes are pending
+	public final static int FLUSH_BYTES = Integer.getInteger("chat.flush.bytes", 16384);
+	// How long a writer waits for more replies before it flushes, 0 only coalesces what is already queued
+	public final static long FLUSH_LINGER_NANOS = Long.getLong("chat.flush.linger.us", 0) * 1000;
+
+	// Recent general messages of every room that a user gets on joining it, 0 turns the replay off
+	public final static int HISTORY_SIZE = Integer.getInteger("chat.history", 50);
+	// Records at the end of the message log read at startup for the history of the rooms
+	public final static int HISTORY_SCAN = Integer.getInteger("chat.history.scan", 10000);
+	// Rooms that went away whose history is kept, for when someone makes them again
+	public final static int HISTORY_ROOMS = Integer.getInteger("chat.history.rooms", 1000);
+
+	// Directory of the message log, it is off unless this is set
+	public final static String LOG_DIR = System.getProperty("chat.log.dir", "");
+	// A new segment file is started when the current one reaches this size
+	public final static int LOG_SEGMENT_BYTES = Integer.getInteger("chat.log.segment.mb", 64) * 1024 * 1024;
+	// always, interval or never
+	public final static MessageLog.FsyncPolicy LOG_FSYNC =
+			MessageLog.FsyncPolicy.valueOf(System.getProperty("chat.log.fsync", "interval").toUpperCase());
+	public final static long LOG_FSYNC_MILLIS = Long.getLong("chat.log.fsync.ms", 1000);
+	// Messages that can wait for the log writer, more are dropped and counted
+	public final static int LOG_QUEUE = Integer.getInteger("chat.log.queue", 65536);
+	// Oldest segments are deleted when the log is bigger or older than this
+	public final static long LOG_RETENTION_BYTES = Long.getLong("chat.log.retention.mb", 1024) * 1024 * 1024;
+	public final static long LOG_RETENTION_MILLIS = Long.getLong("chat.log.retention.hours", 168) * 3600 * 1000;
+
+	// Directory of the offline inboxes, they are off unless it is set
+	public final static String INBOX_DIR = System.getProperty("chat.inbox.dir", "");
+	// Private messages that can wait for one user, the oldest are dropped first
+	public final static int INBOX_MAX = Integer.getInteger("chat.inbox.max", 100);
+	// Waiting messages older than this are not delivered
+	public final static long INBOX_MAX_MILLIS = Long.getLong("chat.inbox.days", 7) * 24 * 3600 * 1000;
+
+	// Port the other nodes of the cluster connect to, 0 runs this server on its own
+	public final static int CLUSTER_PORT = Integer.getInteger("chat.cluster.port", 0);
+	// Address the cluster port listens on, only this host unless set
+	public final static String CLUSTER_BIND = System.getProperty("chat.cluster.bind", "127.0.0.1");
+	// Every node must be given the same one, a link that does not send it is closed
+	public final static String CLUSTER_SECRET = System.getProperty("chat.cluster.secret", "");
+	// The other nodes, as host:port of their cluster port separated by commas
+	public final static String CLUSTER_PEERS = System.getProperty("chat.cluster.peers", "");
+	// Name of this node, the host:port the other nodes list it by
+	public final static String CLUSTER_NODE = System.getProperty("chat.cluster.node", "127.0.0.1:" + CLUSTER_PORT);
+	// Lines that can wait for a link to another node, more are dropped until it catches up
+	public final static int CLUSTER_QUEUE = Integer.getInteger("chat.cluster.queue", 65536);
+
+	// Compression level for +deflate clients, 1 (fastest) to 9 (smallest)
+	public final static int DEFLATE_LEVEL = Integer.getInteger("chat.deflate.level", 6);
+	// User names that get an id for +binary clients before the ids are given out again
+	public final static int BINARY_IDS = Integer.getInteger("chat.binary.ids", 65536);
+
+	// PKCS12 key store with the server's key and certificate, empty runs without TLS
+	public final static String TLS_KEYSTORE = System.getProperty("chat.tls.keystore", "");
+	public final static String TLS_PASSWORD = System.getProperty("chat.tls.password", "changeit");
+	// Threads that run the slow part of TLS handshakes for the reactors
+	public final static int TLS_HANDSHAKE_THREADS = Integer.getInteger("chat.tls.handshake.threads", 2);
+	// TLS sessions kept for clients to resume, and for how long
+	public final static int TLS_SESSION_CACHE = Integer.getInteger("chat.tls.session.cache", 20000);
+	public final static int TLS_SESSION_SECONDS = Integer.getInteger("chat.tls.session.hours", 24) * 3600;
+
+	// Seconds between metric reports on standard output, 0 turns them off
+	public final static int METRICS_INTERVAL = Integer.getInteger("chat.metrics.interval", 0);
+}
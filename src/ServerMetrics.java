@@ -0,0 +1,69 @@
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodic report of the server's health on standard output.
+ *
+ * Turned on with -Dchat.metrics.interval=<seconds>.
+ *
+ */
+public class ServerMetrics {
+
+	// Start reporting if an interval is configured
+	public static void start(UserRegistry users, RoomRegistry rooms, MessageLog log, InboxStore inbox, ClusterNode cluster,
+			TlsTransport tls) {
+		if (ServerConfig.METRICS_INTERVAL <= 0) {
+			return;
+		}
+
+		ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "chat-metrics");
+			t.setDaemon(true);
+			return t;
+		});
+		timer.scheduleAtFixedRate(() -> System.out.print(report(users, rooms, log, inbox, cluster, tls)),
+				ServerConfig.METRICS_INTERVAL, ServerConfig.METRICS_INTERVAL, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * One line per room with its traffic, and one line per logged in user
+	 * with the state of its outbound queue. The message log and the offline
+	 * inboxes, the cluster links, TLS and compression too, if they are on.
+	 *
+	 * @return String - the report
+	 */
+	public static String report(UserRegistry users, RoomRegistry rooms, MessageLog log, InboxStore inbox, ClusterNode cluster,
+			TlsTransport tls) {
+		StringBuilder sb = new StringBuilder();
+
+		if (log != null) {
+			sb.append("log ").append(log).append('\n');
+		}
+		if (inbox != null) {
+			sb.append("inbox ").append(inbox).append('\n');
+		}
+		if (cluster != null) {
+			sb.append("cluster ").append(cluster).append('\n');
+		}
+		if (tls != null) {
+			sb.append("tls ").append(tls).append('\n');
+		}
+		if (DeflateCodec.frames() > 0) {
+			sb.append("deflate ").append(DeflateCodec.stats()).append('\n');
+		}
+		sb.append("rooms=").append(rooms.size()).append('\n');
+		for (Room r: rooms.rooms()) {
+			sb.append("  room ").append(r).append('\n');
+		}
+		sb.append("users=").append(users.size()).append('\n');
+		for (ChatServer.Connection c: users.snapshot()) {
+			if (c.node != null) { // Its queue is on the node it logged in on
+				sb.append("  remote ").append(c.username).append(' ').append(c.node).append('\n');
+				continue;
+			}
+			sb.append("  queue ").append(c.username).append(' ').append(c.outbound).append('\n');
+		}
+		return sb.toString();
+	}
+}
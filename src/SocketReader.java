@@ -1,10 +1,11 @@
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.TreeSet;
+
+import javax.net.ssl.SSLSocketFactory;
 
 /**
  * @author Xuan Mai
@@ -15,103 +16,118 @@ import java.util.Arrays;
  * 
  */
 public class SocketReader implements Runnable {
-	public static final int PORT = 1337;
-	public static final String HOST = "127.0.0.1";
+	// Server to connect to, can be changed with -Dchat.host and -Dchat.port
+	public static final int PORT = Integer.getInteger("chat.port", 1337);
+	public static final String HOST = System.getProperty("chat.host", "127.0.0.1");
+	// Ask the server for compressed messages with -Dchat.deflate=true, e.g. on a metered connection
+	public static final boolean DEFLATE = Boolean.getBoolean("chat.deflate");
+	// Connect with TLS, -Dchat.tls=true. A self-signed server needs -Djavax.net.ssl.trustStore too
+	public static final boolean TLS = Boolean.getBoolean("chat.tls");
 	
 	ChatModel model = null;
-	String username = null;
+	volatile String username = null; // Set by the reading thread, used by the writing thread
+	
+	String host;
+	int port;
+	
+	TreeSet<String> user_list; // Sorted, a join or leave costs O(log n)
+	long roster_version = -1; // Version of user_list, -1 until a whole command 11 snapshot came in
+	TreeSet<String> roster_pages = new TreeSet<String>(); // Users from the command 11 lines so far
+	StringBuilder room_list = new StringBuilder(); // Rooms from the command 18 lines so far
 	
-	ArrayList<String> user_list;
+	CommandParser parser = new CommandParser(); // Reused for every line from server
 	
-	BufferedReader from_server = null; // the reader from the network
+	DeflateCodec.LineReader from_server = null; // the reader from the network, inflates once the server says so
 	PrintWriter to_server = null;
 	Socket socket = null;   // the socket
 	
-	boolean send_now = false;
-	
 	public SocketReader(ChatModel m) {
+		this(m, HOST, PORT);
+	}
+	
+	public SocketReader(ChatModel m, String host, int port) {
 		this.model = m;
-		this.user_list = new ArrayList<String>();
+		this.host = host;
+		this.port = port;
+		this.user_list = new TreeSet<String>();
 	}
 	
-	// This method runs in a separate thread
+	// This method runs in a separate thread and reads what server sends
 	public void run() {
 		String server_reply;
-		String client_message_mode;
 
 		try {
-			socket = new Socket(HOST, PORT); //create a socket that listens to port 1337
+			// create a socket that listens to port 1337, sessions are resumed on reconnect
+			socket = TLS ? SSLSocketFactory.getDefault().createSocket(host, port) : new Socket(host, port);
 			// a reader to read from socket
-			from_server = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-			to_server = new PrintWriter(socket.getOutputStream(), true);
+			from_server = new DeflateCodec.LineReader(socket.getInputStream());
+			to_server = new PrintWriter(socket.getOutputStream()); // Flushed once per batch of messages
 			
-			while (true) {
-				if (sendMessage()) { // There is a message to send
-					client_message_mode = this.messageStartWith(model.getClientMessage());
-					
-					switch (client_message_mode) {
-						case "login":  // Send command 0 (request user name) to server
-							model.setClientMessage(this.constructCommand0(model.getClientMessage()));
+			Thread writer = new Thread(new Runnable() { // Client's messages are written by a thread of their own
+				public void run() {
+					writeLoop();
+				}
+			}, "chat-writer");
+			writer.setDaemon(true);
+			writer.start();
+			
+			// Block until server sends something, null means it hung up
+			while ((server_reply = from_server.readLine()) != null) {
+				if (server_reply.length() <= ChatRoomRules.MESSAGE_LENGTH) {
+					if (server_reply.length() >= 2) {
+						switch (CommandParser.commandOf(server_reply)) {
+						case 1: // Got a welcome message from server
+							server_reply = this.command1(server_reply);
 							break;
-						case "logout": // Send command 7 (request disconnection) to server
-							model.setClientMessage(this.constructCommand7());
+						case 2: // Got a denial for user name from server
+							server_reply = this.command2();
 							break;
-						case "whisper":
-							model.setClientMessage(this.constructCommand4(model.getClientMessage()));
+						case 5: // Got a general message from server
+							server_reply = this.command5(server_reply);
 							break;
-						case "all":
-							model.setClientMessage(this.constructCommand3(model.getClientMessage()));
+						case 6: // Got a private message
+							server_reply = this.command6(server_reply);
+							break;
+						case 8: 
+							server_reply = this.command8();
+							break;
+						case 9:
+							server_reply = this.command9(server_reply);
+							break;
+						case 10:
+							server_reply = this.command10(server_reply);
+							break;
+						case 11: // Part of the user list
+							server_reply = this.command11(server_reply);
+							break;
+						case 12: // Someone joined or left
+							server_reply = this.command12(server_reply);
+							break;
+						case 16: // Now in another room
+							server_reply = this.command16(server_reply);
+							break;
+						case 17: // Someone came to or left this room
+							server_reply = this.command17(server_reply);
+							break;
+						case 18: // Part of the room list
+							server_reply = this.command18(server_reply);
+							break;
+						case 21: // Everything after this line is compressed
+							from_server.inflate();
+							server_reply = null;
 							break;
-					}
-					
-					
-					to_server.println(model.getClientMessage());
-					this.setSendMessage(false); // Sent client's message, no more message to send
-				}
-				
-				if (from_server.ready()) {
-					server_reply = from_server.readLine();
-					
-					if (server_reply.length() <= ChatRoomRules.MESSAGE_LENGTH) {
-						if ((server_reply != null) && (server_reply.length() >= 2)) {
-							if (Character.isDigit(server_reply.charAt(0)) && (server_reply.charAt(1) == ' ')) {
-								switch (server_reply.charAt(0)) {
-								case '1': // Got a welcome message from server
-									server_reply = this.command1(server_reply);
-									break;
-								case '2': // Got a denial for user name from server
-									server_reply = this.command2();
-									break;
-								case '5': // Got a general message from server
-									server_reply = this.command5(server_reply);
-									break;
-								case '6': // Got a private message
-									server_reply = this.command6(server_reply);
-									break;
-								case '8': 
-									server_reply = this.command8();
-									break;
-								case '9':
-									server_reply = this.command9(server_reply);
-									break;
-								}
-							}
-							else if ((server_reply.length() >= 3) && (server_reply.substring(0, 3).equals("10 "))) {
-								server_reply = this.command10(server_reply);
-							}
-
-							model.setServerMessage(server_reply);
-							model.getServerMessage();
 						}
+
+						model.setServerMessage(server_reply); // Straight to the listeners, null shows nothing
 					}
 				}
-				
 			}
 		}
 		catch (IOException ioe) {
 			System.err.println(ioe);
 		}
 		finally { //close all streams
+			model.connectionClosed(); // What the client types now has nowhere to go
 			if (from_server != null)
 				try {
 					from_server.close();
@@ -128,12 +144,46 @@ public class SocketReader implements Runnable {
 	}
 	
 
-	public void setSendMessage(boolean b) {
-		this.send_now = b;
-	}
-	
-	private boolean sendMessage() {
-		return this.send_now;
+	// Write client's messages to server, this runs in a separate thread
+	private void writeLoop() {
+		ArrayList<String> batch = new ArrayList<String>();
+		
+		try {
+			while (true) {
+				batch.clear();
+				model.takeClientMessages(batch); // Sleep until client sends something
+				
+				for (String message: batch) { // In the order they were typed
+					switch (this.messageStartWith(message)) {
+						case "login":  // Send command 0 (request user name) to server
+							message = this.constructCommand0(message);
+							break;
+						case "logout": // Send command 7 (request disconnection) to server
+							message = this.constructCommand7();
+							break;
+						case "whisper":
+							message = this.constructCommand4(message);
+							break;
+						case "all":
+							message = this.constructCommand3(message);
+							break;
+						case "join":
+							message = this.constructCommand13(message);
+							break;
+						case "leave":
+							message = "14 \r\n";
+							break;
+						case "rooms":
+							message = "15 \r\n";
+							break;
+					}
+					
+					to_server.println(message);
+				}
+				to_server.flush(); // The whole batch goes out together
+				model.clientMessagesSent(batch.size());
+			}
+		} catch (InterruptedException e) {}
 	}
 	
 	/**
@@ -149,6 +199,12 @@ public class SocketReader implements Runnable {
 			if (message.substring(0, 2).equalsIgnoreCase("/o")) {
 				return "logout";
 			}
+			else if (message.substring(0, 2).equalsIgnoreCase("/l")) {
+				return "leave";
+			}
+			else if (message.substring(0, 2).equalsIgnoreCase("/r")) {
+				return "rooms";
+			}
 		}
 		else if (message.length() > 2) {
 			if (message.substring(0, 3).equalsIgnoreCase("/i ")) {
@@ -160,6 +216,9 @@ public class SocketReader implements Runnable {
 			else if (message.substring(0, 3).equalsIgnoreCase("/a ")) {
 				return "all";
 			}
+			else if (message.substring(0, 3).equalsIgnoreCase("/j ")) {
+				return "join";
+			}
 		}
 		return message;
 	}
@@ -170,15 +229,7 @@ public class SocketReader implements Runnable {
 	 * @return a list of users
 	 */
 	private String printUserList() {
-		String list = "";
-		
-		for (String user: this.user_list) {
-			list = list + user + ", ";
-		}
-		
-		list = list.substring(0, list.length()-2); // Get rid of the last <,><" ">
-		
-		return list;
+		return String.join(", ", this.user_list);
 	}
 	
 	/**
@@ -191,8 +242,8 @@ public class SocketReader implements Runnable {
 	 * @return String - command 0 to send to server
 	 *  
 	 */
-	private String constructCommand0(String message) {
-		return "0" + message.substring(message.indexOf(" ")) + "\r\n";
+	String constructCommand0(String message) {
+		return "0" + message.substring(message.indexOf(" ")) + (DEFLATE ? " +roster +deflate\r\n" : " +roster\r\n"); // Ask for the versioned roster
 	}
 	
 	
@@ -206,7 +257,7 @@ public class SocketReader implements Runnable {
 	 * @return String - command 3 to send to server
 	 *  
 	 */
-	private String constructCommand3(String message) {
+	String constructCommand3(String message) {
 		if (message.substring(message.indexOf(" ")).length() >= 2) { // Client's message is not empty
 			return "3" + " " + message.substring(message.indexOf(" ")+1) + "\r\n";
 		}
@@ -226,7 +277,7 @@ public class SocketReader implements Runnable {
 	 * @return String - command 4 to send to server
 	 *  
 	 */
-	private String constructCommand4(String message) {
+	String constructCommand4(String message) {
 		String to_user;
 		String line;
 		
@@ -247,6 +298,23 @@ public class SocketReader implements Runnable {
 	}
 	
 	
+	/**
+	 * 
+	 * This will construct client's command 13 (Client goes to a room)
+	 * <13><" "><room></r/n>
+	 * Command 14 (<14></r/n>, back to the lobby) and 15 (<15></r/n>, list
+	 * the rooms) have nothing to construct.
+	 * 
+	 * @param message - the message that client submitted, in format of </j><" "><room>
+	 * 
+	 * @return String - command 13 to send to server
+	 *  
+	 */
+	String constructCommand13(String message) {
+		return "13 " + message.substring(3).trim() + "\r\n";
+	}
+	
+	
 	/**
 	 * 
 	 * This will construct client's command 7 (Client sends a disconnect request)
@@ -255,7 +323,7 @@ public class SocketReader implements Runnable {
 	 * @return String - command 7 to send to server
 	 *  
 	 */
-	private String constructCommand7() {
+	String constructCommand7() {
 		return "7 \r\n";
 	}
 	
@@ -270,34 +338,29 @@ public class SocketReader implements Runnable {
 	 * @return String - a parse message for display to ChatView
 	 *  
 	 */
-	private String command1(String server_message) {
-		String line = server_message;
+	String command1(String server_message) {
 		String users_list;
-		String message;
-		
-		int space = 0;
-		int end_command = 0;
+		StringBuilder message = new StringBuilder();
 		
-		space = line.indexOf(" ");
-		line = line.substring(space+1);
-		
-		space = line.indexOf(" ");
-		users_list = line.substring(0, space);
-		
-		if (users_list.lastIndexOf(',') != -1) { // More than one user in the list
-			this.username = users_list.substring(users_list.lastIndexOf(',')+1); // The last user in the user list is this socket
-		}
-		else { // This connect is the first user
-			this.username = users_list;
+		if (parser.parse(server_message, 3) < 3) { // <1>, <user list> and <welcome message>
+			return server_message;
 		}
+		users_list = parser.field(1);
 		
-		this.user_list = new ArrayList<String>(Arrays.asList(users_list.split(",")));
+		// The last user in the user list is this socket, or the only one if this connect is the first user
+		this.username = users_list.substring(users_list.lastIndexOf(',')+1);
 		
-		line = line.substring(space+1);
+		this.user_list = new TreeSet<String>(Arrays.asList(users_list.split(",")));
+		if (model != null) {
+			model.setRoster(this.user_list.toArray(new String[0]));
+		}
 		
-		message = (line.substring(end_command) + "\n" + "All users: " + this.printUserList());
+		parser.appendField(message, 2);
+		if (this.user_list.size() > 1) { // A server that sends command 11 only lists this user here
+			message.append("\n").append("All users: ").append(this.printUserList());
+		}
 		
-		return message;
+		return message.toString();
 	}
 	
 	
@@ -323,27 +386,18 @@ public class SocketReader implements Runnable {
 	 * 
 	 */
 	public String command5(String server_message) {
-		String line = server_message;
-		String user;
-		String time;
-		String message;
-		
-		int space = 0;
-		
-		space = line.indexOf(" ");
-		line = line.substring(space+1);
+		StringBuilder message = new StringBuilder(server_message.length() + 8);
 		
-		space = line.indexOf(" ");
-		user = line.substring(0, space);
-		line = line.substring(space+1);
-		
-		space = line.indexOf(" ");
-		time = line.substring(0, space);
-		line = line.substring(space+1);
+		if (parser.parse(server_message, 4) < 4) { // <5>, <Username>, <time> and <message>
+			return server_message;
+		}
 		
-		message = "[" + time + "][GMT] " + user + ": " + line;
+		message.append('[');
+		parser.appendField(message, 2).append("][GMT] ");
+		parser.appendField(message, 1).append(": ");
+		parser.appendField(message, 3);
 		
-		return message;
+		return message.toString();
 	}
 	
 	/**
@@ -355,33 +409,19 @@ public class SocketReader implements Runnable {
 	 * @return String - a parse message for display to ChatView
 	 * 
 	 */
-	private String command6(String from_server) {
-		String line = from_server;
-		String message = null;
-		String from_user = null;
-		String reply = null;
-		String time = null;
-		
-		int space = 0;
-		
-		space = line.indexOf(" ");
-		line = line.substring(space+1);
-		
-		space = line.indexOf(" ");
-		from_user = line.substring(0, space);
-		line = line.substring(space+1);
-		
-		space = line.indexOf(" ");
-		line = line.substring(space+1);
+	String command6(String from_server) {
+		StringBuilder reply = new StringBuilder(from_server.length() + 32);
 		
-		space = line.indexOf(" ");
-		time = line.substring(0, space);
-		
-		message = line.substring(space+1);
+		if (parser.parse(from_server, 5) < 5) { // <6>, <fromUsername>, <toUsername>, <time> and <message>
+			return from_server;
+		}
 		
-		reply = "[" + time + "][GMT] Private message from " + from_user + ":\n" + message;
+		reply.append('[');
+		parser.appendField(reply, 3).append("][GMT] Private message from ");
+		parser.appendField(reply, 1).append(":\n");
+		parser.appendField(reply, 4);
 		
-		return reply;
+		return reply.toString();
 	}
 	
 	/**
@@ -399,6 +439,7 @@ public class SocketReader implements Runnable {
 	/**
 	 * This will parse server's command 9 (Server announces a client user has disconnected)
 	 * <9>< ><username></r/n>
+	 * Only the user who left goes to ChatView's user list, not the whole list
 	 * 
 	 * @return String - a message for display to ChatView
 	 * 
@@ -406,16 +447,18 @@ public class SocketReader implements Runnable {
 	private String command9(String message) {
 		String user = message.substring(message.indexOf(" ")+1);
 		
-		this.user_list.remove(user);
+		if (this.user_list.remove(user) && (model != null)) {
+			model.userLeft(user);
+		}
 		
-		return (user + " has been disconnected from the chatroom!\n" + 
-				"All users: " + this.printUserList());
+		return (user + " has been disconnected from the chatroom!");
 	}
 	
 	
 	/**
 	 * This will parse server's command 9 (Server announces a client user has connected)
 	 * <10>< ><username></r/n>
+	 * Only the user who joined goes to ChatView's user list, not the whole list
 	 * 
 	 * @return String - a message for display to ChatView
 	 * 
@@ -423,9 +466,163 @@ public class SocketReader implements Runnable {
 	private String command10(String message) {
 		String user = message.substring(message.indexOf(" ")+1);
 		
-		this.user_list.add(user);
+		if (this.user_list.add(user) && (model != null)) {
+			model.userJoined(user);
+		}
+		
+		return (user + " has been connected from the chatroom!");
+	}
+	
+	
+	/**
+	 * This will parse server's command 11 (Server sends a piece of the user list)
+	 * <11><" "><version><" "><more><" "><user1,user2,...></r/n>
+	 * The list replaces user_list once the last piece (more is 0) came in.
+	 * 
+	 * @return String - how many users are online after the last piece, null before
+	 * 
+	 */
+	private String command11(String message) {
+		if (parser.parse(message, 4) < 4) { // <11>, <version>, <more> and <users>
+			return null;
+		}
+		
+		for (String user: parser.field(3).split(",")) {
+			if (!user.isEmpty()) {
+				roster_pages.add(user);
+			}
+		}
+		
+		if (parser.fieldEquals(2, "0")) { // Last piece
+			this.user_list = roster_pages;
+			this.roster_pages = new TreeSet<String>();
+			this.roster_version = Long.parseLong(parser.field(1));
+			if (model != null) {
+				model.setRoster(this.user_list.toArray(new String[0]));
+			}
+			return (this.user_list.size() + " users online");
+		}
+		return null;
+	}
+	
+	
+	/**
+	 * This will parse server's command 12 (Server announces a join or leave)
+	 * <12><" "><version><" "><+ or -><username></r/n>
+	 * Changes the snapshot already has are skipped. If a version is missing
+	 * (e.g. the server dropped replies to this client) the whole list is
+	 * asked for again with command 11.
+	 * 
+	 * @return String - a message for display to ChatView
+	 * 
+	 */
+	private String command12(String message) {
+		if ((parser.parse(message, 3) < 3) || (parser.length(2) < 2)) { // <12>, <version> and <change>
+			return null;
+		}
+		
+		long version = Long.parseLong(parser.field(1));
+		boolean joined = (message.charAt(parser.start(2)) == '+');
+		String user = message.substring(parser.start(2) + 1);
+		
+		if ((roster_version >= 0) && (version > roster_version)) {
+			if (version == roster_version + 1) {
+				roster_version = version;
+				if (joined ? this.user_list.add(user) : this.user_list.remove(user)) {
+					if (model != null) {
+						if (joined) {
+							model.userJoined(user);
+						}
+						else {
+							model.userLeft(user);
+						}
+					}
+				}
+			}
+			else { // Missed a change, the next snapshot has it
+				roster_version = -1;
+				this.requestRoster();
+			}
+		}
+		
+		return joined ? (user + " has been connected from the chatroom!") : (user + " has been disconnected from the chatroom!");
+	}
+	
+	
+	// Ask the server for the whole user list again, from the reading thread
+	private void requestRoster() {
+		if (to_server != null) {
+			to_server.print("11 \r\n"); // Same line ending as the commands the writer sends
+			to_server.flush();
+		}
+	}
+	
+	
+	/**
+	 * This will parse server's command 16 (Server says which room this user is in)
+	 * <16><" "><room><" "><members></r/n>
+	 * 
+	 * @return String - a message for display to ChatView
+	 * 
+	 */
+	private String command16(String message) {
+		if (parser.parse(message, 3) < 3) { // <16>, <room> and <members>
+			return message;
+		}
+		
+		StringBuilder reply = new StringBuilder("You are in room ");
+		parser.appendField(reply, 1).append(" with ");
+		parser.appendField(reply, 2).append(" user(s)");
+		
+		return reply.toString();
+	}
+	
+	
+	/**
+	 * This will parse server's command 17 (Server announces a user came to or left this room)
+	 * <17><" "><room><" "><+ or -><username></r/n>
+	 * 
+	 * @return String - a message for display to ChatView
+	 * 
+	 */
+	private String command17(String message) {
+		if ((parser.parse(message, 3) < 3) || (parser.length(2) < 2)) { // <17>, <room> and <change>
+			return message;
+		}
+		
+		StringBuilder reply = new StringBuilder();
+		reply.append(message, parser.start(2) + 1, parser.end(2));
+		reply.append((message.charAt(parser.start(2)) == '+') ? " came to room " : " left room ");
+		parser.appendField(reply, 1);
+		
+		return reply.toString();
+	}
+	
+	
+	/**
+	 * This will parse server's command 18 (Server sends a piece of the room list)
+	 * <18><" "><more><" "><room1:members,room2:members,...></r/n>
+	 * 
+	 * @return String - the rooms, one per line, after the last piece, null before
+	 * 
+	 */
+	private String command18(String message) {
+		if (parser.parse(message, 3) < 3) { // <18>, <more> and <rooms>
+			return null;
+		}
+		
+		for (String room: parser.field(2).split(",")) {
+			int colon = room.lastIndexOf(':');
+			if (colon > 0) {
+				room_list.append("\n  ").append(room, 0, colon).append(" (").append(room, colon + 1, room.length()).append(')');
+			}
+		}
 		
-		return (user + " has been connected from the chatroom!\n" + 
-				"All users: " + this.printUserList());
+		if (parser.fieldEquals(1, "0")) { // Last piece
+			String rooms = "Rooms:" + room_list;
+			room_list.setLength(0);
+			return rooms;
+		}
+		return null;
 	}
 }
@@ -0,0 +1,332 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Enumeration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * TLS for the chat server, turned on with -Dchat.tls.keystore=<PKCS12 file>.
+ *
+ * In nio mode every connection gets an SSLEngine that ChatReactor reads
+ * and writes through (see Channel). The expensive parts of a handshake
+ * (key exchange, signing) are the engine's delegated tasks, they run on
+ * a pool of their own so a burst of handshakes never stops a reactor from
+ * moving messages. The other modes get an SSLServerSocket from the same
+ * SSLContext, their handshakes already run on the connection's own thread.
+ *
+ * Reconnects are cheap: the server keeps a session cache and hands out
+ * session tickets, so a client that comes back resumes its session
+ * instead of doing a full handshake.
+ *
+ * bench/tls-keystore.sh makes a self-signed key for testing, clients then
+ * trust it with -Djavax.net.ssl.trustStore and log in with -Dchat.tls=true.
+ *
+ */
+public class TlsTransport {
+	private final SSLContext context;
+	private final ExecutorService handshakes;
+
+	// Metrics
+	private final AtomicLong engines = new AtomicLong();
+	private final AtomicLong tasks = new AtomicLong();
+	private final AtomicLong finished = new AtomicLong();
+
+	/**
+	 * Set up TLS as configured in ServerConfig
+	 *
+	 * @return TlsTransport - TLS for the server, or null if chat.tls.keystore is empty
+	 */
+	public static TlsTransport open() throws IOException {
+		if (ServerConfig.TLS_KEYSTORE.isEmpty()) {
+			return null;
+		}
+
+		// Stateless resumption, the client keeps its session for the server (on by default since Java 13)
+		if (System.getProperty("jdk.tls.server.enableSessionTicketExtension") == null) {
+			System.setProperty("jdk.tls.server.enableSessionTicketExtension", "true");
+		}
+
+		try (InputStream in = new FileInputStream(ServerConfig.TLS_KEYSTORE)) {
+			char[] password = ServerConfig.TLS_PASSWORD.toCharArray();
+			KeyStore keys = KeyStore.getInstance("PKCS12");
+			keys.load(in, password);
+
+			KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			kmf.init(keys, password);
+
+			SSLContext context = SSLContext.getInstance("TLS");
+			context.init(kmf.getKeyManagers(), null, null);
+
+			SSLSessionContext sessions = context.getServerSessionContext();
+			sessions.setSessionCacheSize(ServerConfig.TLS_SESSION_CACHE);
+			sessions.setSessionTimeout(ServerConfig.TLS_SESSION_SECONDS);
+
+			return new TlsTransport(context);
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Cannot set up TLS with " + ServerConfig.TLS_KEYSTORE, e);
+		}
+	}
+
+	private TlsTransport(SSLContext context) {
+		this.context = context;
+		this.handshakes = Executors.newFixedThreadPool(ServerConfig.TLS_HANDSHAKE_THREADS, r -> {
+			Thread t = new Thread(r, "tls-handshake");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	// For the thread per connection modes, each socket does its handshake on its own thread
+	public ServerSocket serverSocket(int port) throws IOException {
+		SSLServerSocket server = (SSLServerSocket) context.getServerSocketFactory().createServerSocket(port);
+		server.setNeedClientAuth(false);
+		return server;
+	}
+
+	/**
+	 * TLS for a channel serviced by a ChatReactor
+	 *
+	 * @param ch - the accepted channel
+	 * @param resume - called from the handshake pool when a task is done, must get the reactor to flush
+	 *
+	 * @return Channel - the channel's TLS state
+	 */
+	Channel channel(SocketChannel ch, Runnable resume) {
+		SSLEngine engine = context.createSSLEngine();
+		engine.setUseClientMode(false);
+		engines.incrementAndGet();
+		return new Channel(ch, engine, resume);
+	}
+
+	@Override
+	public String toString() {
+		int cached = 0;
+		for (Enumeration<byte[]> ids = context.getServerSessionContext().getIds(); ids.hasMoreElements(); ids.nextElement()) {
+			cached++;
+		}
+		return "connections=" + engines.get() + " handshakes=" + finished.get() + " tasks=" + tasks.get() +
+				" cached_sessions=" + cached;
+	}
+
+	/**
+	 * The SSLEngine of one connection and its encrypted buffers. Only
+	 * used by the reactor's thread, except for the flags the handshake
+	 * pool sets when a task is done.
+	 *
+	 * Reading: read() fills net_in from the socket and unwrap() turns it
+	 * into plain bytes for the reactor, the handshake goes on in between.
+	 * Writing: write() wraps the reactor's frames into net_out, once the
+	 * handshake is done, and writes net_out to the socket.
+	 */
+	class Channel {
+		private final SocketChannel ch;
+		private final SSLEngine engine;
+		private final Runnable resume;
+
+		private ByteBuffer net_in; 				// Encrypted, from the client, in write mode
+		private final ByteBuffer net_out; 		// Encrypted, for the client, in read mode
+		private boolean overflow = false; 		// unwrap() stopped with records left for lack of room
+
+		private volatile boolean task_running = false;
+		private volatile boolean task_done = false; 	// Go on with what is in net_in
+
+		Channel(SocketChannel ch, SSLEngine engine, Runnable resume) {
+			this.ch = ch;
+			this.engine = engine;
+			this.resume = resume;
+
+			int packet = engine.getSession().getPacketBufferSize();
+			this.net_in = ByteBuffer.allocate(packet);
+			this.net_out = ByteBuffer.allocate(packet);
+			this.net_out.flip();
+		}
+
+		// Room the reactor must leave for one record of plain bytes
+		int applicationBufferSize() {
+			return engine.getSession().getApplicationBufferSize();
+		}
+
+		/**
+		 * Read from the socket and unwrap what came
+		 *
+		 * @param app - where the plain bytes go, in write mode
+		 *
+		 * @return int - plain bytes added to app, -1 when the client is gone
+		 */
+		int read(ByteBuffer app) throws IOException {
+			if (ch.read(net_in) == -1) {
+				return -1;
+			}
+			return unwrap(app);
+		}
+
+		/**
+		 * Unwrap the records already read, as many as fit
+		 *
+		 * @param app - where the plain bytes go, in write mode
+		 *
+		 * @return int - plain bytes added to app, -1 when the client closed the TLS session
+		 */
+		int unwrap(ByteBuffer app) throws IOException {
+			int start = app.position();
+			overflow = false;
+			task_done = false;
+
+			while ((net_in.position() > 0) && !task_running) {
+				net_in.flip();
+				SSLEngineResult r = engine.unwrap(net_in, app);
+				net_in.compact();
+
+				switch (r.getStatus()) {
+					case CLOSED:
+						return (app.position() > start) ? app.position() - start : -1;
+					case BUFFER_OVERFLOW: // The reactor gets to the rest once it took these
+						overflow = true;
+						return app.position() - start;
+					case BUFFER_UNDERFLOW: // Only part of a record, wait for the rest
+						if (!net_in.hasRemaining()) {
+							net_in = grow(net_in, engine.getSession().getPacketBufferSize());
+						}
+						return app.position() - start;
+					case OK:
+						break;
+				}
+				if (r.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+					finished.incrementAndGet();
+				}
+				handshake();
+			}
+			return app.position() - start;
+		}
+
+		// More records are waiting to be unwrapped, without reading the socket
+		boolean pending() {
+			return overflow || task_done;
+		}
+
+		/**
+		 * Move the handshake along as far as it goes without waiting
+		 *
+		 * @return boolean - true once it is done and its last bytes are written
+		 */
+		boolean handshake() throws IOException {
+			while (!task_running) {
+				switch (engine.getHandshakeStatus()) {
+					case NEED_TASK:
+						runTasks();
+						return false;
+					case NEED_WRAP:
+						if (!flushNet()) {
+							return false;
+						}
+						net_out.clear();
+						SSLEngineResult r = engine.wrap(ByteBuffer.allocate(0), net_out);
+						net_out.flip();
+						if (r.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+							finished.incrementAndGet();
+						}
+						if (r.getStatus() == SSLEngineResult.Status.CLOSED) {
+							flushNet();
+							throw new IOException("TLS session closed");
+						}
+						break;
+					case NEED_UNWRAP:
+					case NEED_UNWRAP_AGAIN:
+						flushNet();
+						return false; // unwrap() goes on when the client's bytes come
+					default:
+						return flushNet();
+				}
+			}
+			return false;
+		}
+
+		// The engine's slow work goes to the handshake pool, the reactor is told when it is done
+		private void runTasks() {
+			task_running = true;
+			handshakes.execute(() -> {
+				Runnable task;
+				while ((task = engine.getDelegatedTask()) != null) {
+					task.run();
+					tasks.incrementAndGet();
+				}
+				task_done = true;
+				task_running = false;
+				resume.run();
+			});
+		}
+
+		/**
+		 * Encrypt frames and write them, like a gathering write
+		 *
+		 * @return long - plain bytes taken from srcs, 0 while the handshake is going on
+		 */
+		long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+			if (!handshake()) {
+				return 0;
+			}
+
+			long taken = 0;
+			while (flushNet()) {
+				net_out.clear();
+				SSLEngineResult r = engine.wrap(srcs, offset, length, net_out);
+				net_out.flip();
+				if (r.getStatus() == SSLEngineResult.Status.CLOSED) {
+					throw new IOException("TLS session closed");
+				}
+				if (r.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+					finished.incrementAndGet();
+				}
+				if (r.bytesConsumed() == 0) {
+					break;
+				}
+				taken += r.bytesConsumed();
+			}
+			return taken;
+		}
+
+		// Write what is encrypted already, false if the socket did not take all of it
+		private boolean flushNet() throws IOException {
+			while (net_out.hasRemaining()) {
+				if (ch.write(net_out) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		// Encrypted bytes are waiting for the socket
+		boolean hasOutput() {
+			return net_out.hasRemaining();
+		}
+
+		// Say goodbye if the socket takes it, the reactor closes the channel next
+		void close() {
+			engine.closeOutbound();
+			try {
+				handshake();
+			} catch (IOException e) {}
+		}
+
+		private ByteBuffer grow(ByteBuffer b, int size) {
+			ByteBuffer bigger = ByteBuffer.allocate(Math.max(b.capacity() * 2, size));
+			b.flip();
+			bigger.put(b);
+			return bigger;
+		}
+	}
+}
@@ -0,0 +1,206 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.AbstractListModel;
+
+/**
+ * The conversation shown by ChatView, one display line per row.
+ *
+ * Only the newest SCROLLBACK lines are kept in memory, in a ring buffer.
+ * Older lines are spilled to a temporary file and read back a page at a
+ * time when the list is scrolled to them, so the heap used by the client
+ * stays the same however long it runs. The list only asks for the rows
+ * it shows. If the spill file cannot be created the oldest lines are
+ * dropped instead. Lines longer than WRAP_COLUMNS are wrapped into
+ * several rows, so every row fits the cell width ChatView gives them.
+ * Only used on the EDT.
+ *
+ */
+public class Transcript extends AbstractListModel<String> {
+	private static final long serialVersionUID = 1L;
+
+	// Lines kept in memory
+	public static final int SCROLLBACK = Integer.getInteger("chat.scrollback", 5000);
+	public static final int WRAP_COLUMNS = 64; // Longest row, a longer line goes on in the next row
+	private static final int PAGE_LINES = 256; 	// Spilled lines are read back this many at a time
+	private static final int CACHED_PAGES = 8;
+
+	private final String[] ring;
+	private int head = 0; 		// Oldest line in memory
+	private int in_memory = 0;
+
+	private RandomAccessFile spill; 	// Lines that left the ring, oldest first. Null if unavailable.
+	private long spilled = 0; 			// Lines in the spill file, they come before the ones in memory
+	private long spill_length = 0;
+	private long[] page_offsets = new long[64]; // Where every PAGE_LINES-th spilled line starts
+
+	// Pages read back from the spill file, least recently used first
+	private final Map<Long, String[]> pages = new LinkedHashMap<Long, String[]>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, String[]> eldest) {
+			return size() > CACHED_PAGES;
+		}
+	};
+
+	public Transcript() {
+		ring = new String[Math.max(1, SCROLLBACK)];
+
+		try {
+			File f = File.createTempFile("chat-transcript", ".txt");
+			f.deleteOnExit();
+			spill = new RandomAccessFile(f, "rw");
+		} catch (IOException ioe) {
+			System.err.println("No spill file for the transcript, old lines will be dropped: " + ioe);
+		}
+	}
+
+	@Override
+	public int getSize() {
+		return (int) Math.min(Integer.MAX_VALUE, spilled + in_memory);
+	}
+
+	@Override
+	public String getElementAt(int index) {
+		if (index < spilled) {
+			String[] page = page(index / PAGE_LINES);
+			int i = index % PAGE_LINES;
+			return (i < page.length) ? page[i] : "";
+		}
+		return ring[(int) ((head + (index - spilled)) % ring.length)];
+	}
+
+	/**
+	 * Add messages from the server at the end, with one list event.
+	 * A message with several lines takes one row per line, or more
+	 * for the lines that have to be wrapped.
+	 *
+	 * @param messages - the messages, in the order they arrived
+	 */
+	public void add(List<String> messages) {
+		int first = getSize();
+		int lost = 0;
+		StringBuilder evicted = new StringBuilder();
+
+		for (String message: messages) {
+			int start = 0;
+
+			while (start <= message.length()) {
+				int end = message.indexOf('\n', start);
+				if (end == -1) {
+					end = message.length();
+					if ((start == end) && (start > 0)) {
+						break; // Nothing after the last line break
+					}
+				}
+				String line = message.substring(start, ((end > start) && (message.charAt(end - 1) == '\r')) ? end - 1 : end);
+				start = end + 1;
+
+				while (line.length() > WRAP_COLUMNS) { // Break after the last space that fits, or in the middle of a word
+					int cut = line.lastIndexOf(' ', WRAP_COLUMNS);
+					cut = (cut > 0) ? cut + 1 : WRAP_COLUMNS;
+					lost += addRow(evicted, line.substring(0, cut));
+					line = line.substring(cut);
+				}
+				lost += addRow(evicted, line);
+			}
+		}
+		writeSpill(evicted);
+
+		if (lost > 0) {
+			fireContentsChanged(this, 0, getSize() - 1);
+		}
+		else if (getSize() > first) {
+			fireIntervalAdded(this, first, getSize() - 1);
+		}
+	}
+
+	/**
+	 * Put a row after the last one in memory.
+	 *
+	 * @param evicted - rows that left memory, to be written to the spill file
+	 * @param row - the row
+	 *
+	 * @return int - 1 if the oldest row was dropped for it, else 0
+	 */
+	private int addRow(StringBuilder evicted, String row) {
+		if (in_memory < ring.length) {
+			ring[(head + in_memory) % ring.length] = row;
+			in_memory++;
+			return 0;
+		}
+		// Full, the oldest row makes room
+		int lost = 0;
+		if (spill != null) {
+			spillLine(evicted, ring[head]);
+		}
+		else {
+			lost = 1;
+		}
+		ring[head] = row;
+		head = (head + 1) % ring.length;
+		return lost;
+	}
+
+	// Queue a line for the spill file and note where each page starts
+	private void spillLine(StringBuilder evicted, String line) {
+		if (spilled % PAGE_LINES == 0) {
+			int page = (int) (spilled / PAGE_LINES);
+			if (page == page_offsets.length) {
+				page_offsets = Arrays.copyOf(page_offsets, page * 2);
+			}
+			page_offsets[page] = spill_length;
+		}
+		pages.remove(spilled / PAGE_LINES); // A cached copy of this page is short by this line now
+
+		byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+		spill_length += bytes.length + 1;
+		spilled++;
+		evicted.append(line).append('\n');
+	}
+
+	private void writeSpill(StringBuilder evicted) {
+		if (evicted.length() == 0) {
+			return;
+		}
+		try {
+			byte[] bytes = evicted.toString().getBytes(StandardCharsets.UTF_8);
+			spill.seek(spill_length - bytes.length);
+			spill.write(bytes);
+		} catch (IOException ioe) {
+			System.err.println("Could not write the transcript spill file: " + ioe);
+		}
+	}
+
+	/**
+	 * A page of spilled lines, from the cache or the file.
+	 *
+	 * @param page - which page
+	 *
+	 * @return String[] - its lines, or empty lines if the file could not be read
+	 */
+	private String[] page(long page) {
+		String[] lines = pages.get(page);
+
+		if (lines == null) {
+			long start = page_offsets[(int) page];
+			long end = ((page + 1) * PAGE_LINES < spilled) ? page_offsets[(int) page + 1] : spill_length;
+
+			try {
+				byte[] bytes = new byte[(int) (end - start)];
+				spill.seek(start);
+				spill.readFully(bytes);
+				lines = new String(bytes, StandardCharsets.UTF_8).split("\n", -1);
+			} catch (IOException ioe) {
+				lines = new String[0];
+			}
+			pages.put(page, lines);
+		}
+		return lines;
+	}
+}
@@ -0,0 +1,106 @@
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The logged in users of the chat server.
+ *
+ * Lookups by user name and broadcasts never lock: the name index is a
+ * ConcurrentHashMap and broadcasts iterate an immutable snapshot array.
+ * Claiming or releasing a name takes a short lock so that the snapshot
+ * stays in the order the names were claimed. Every claim and release
+ * bumps the roster version that clients keeping a roster sync against.
+ *
+ */
+public class UserRegistry {
+	private final ConcurrentHashMap<String, ChatServer.Connection> users;
+	private volatile ChatServer.Connection[] snapshot; 	// All users, in the order they logged in
+	private volatile long version = 0; 						// Claims and releases so far
+	private final Object write_lock = new Object();
+
+	public UserRegistry() {
+		this.users = new ConcurrentHashMap<String, ChatServer.Connection>();
+		this.snapshot = new ChatServer.Connection[0];
+	}
+
+	/**
+	 * Take a user name for a connection.
+	 *
+	 * @param username - the name to claim
+	 * @param c - the connection that logs in with it
+	 *
+	 * @return boolean - false if the name is already in use
+	 */
+	public boolean claim(String username, ChatServer.Connection c) {
+		synchronized (write_lock) {
+			if (users.putIfAbsent(username, c) != null) {
+				return false;
+			}
+
+			ChatServer.Connection[] next = Arrays.copyOf(snapshot, snapshot.length + 1);
+			next[snapshot.length] = c;
+			snapshot = next;
+			version++;
+		}
+		return true;
+	}
+
+	/**
+	 * Give the user name of a connection back.
+	 * Nothing happens if the connection does not hold the name.
+	 *
+	 * @param username - the name to release
+	 * @param c - the connection that holds it
+	 *
+	 * @return boolean - true if the connection was on the list
+	 */
+	public boolean release(String username, ChatServer.Connection c) {
+		if (username == null) {
+			return false;
+		}
+
+		synchronized (write_lock) {
+			if (!users.remove(username, c)) {
+				return false;
+			}
+
+			ChatServer.Connection[] current = snapshot;
+			ChatServer.Connection[] next = new ChatServer.Connection[current.length - 1];
+			int i = 0;
+			for (ChatServer.Connection other: current) {
+				if (other != c) {
+					next[i++] = other;
+				}
+			}
+			snapshot = next;
+			version++;
+		}
+		return true;
+	}
+
+	// Connection that holds the user name, or null
+	public ChatServer.Connection get(String username) {
+		return users.get(username);
+	}
+
+	public boolean contains(String username) {
+		return users.containsKey(username);
+	}
+
+	// The roster version, changes with every claim and release
+	public long version() {
+		return version;
+	}
+
+	public int size() {
+		return users.size();
+	}
+
+	/**
+	 * All users at this moment. The array must not be modified.
+	 *
+	 * @return Connection[] - the users in the order they logged in
+	 */
+	public ChatServer.Connection[] snapshot() {
+		return snapshot;
+	}
+}